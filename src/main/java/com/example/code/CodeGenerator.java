@@ -1,5 +1,6 @@
 package com.example.code;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -7,11 +8,51 @@ import com.example.parser.*;
 import com.example.scanner.Token;
 import com.example.scanner.TokenType;
 
-public class CodeGenerator implements Expression.Visitor<Void>, Statement.Visitor<Void> {
-  private final List<Instruction> instructions = new ArrayList<>();
+public class CodeGenerator implements Expression.Visitor<Void>, Statement.Visitor<Void>, FunctionCompiler {
+  private List<Instruction> instructions = new ArrayList<>();
   private int labelCounter = 0;
+  // Lazy functions whose code is generated by compileFunction
+  private final List<Statement.Function> deferred = new ArrayList<>();
+  // Where variables live; without it they are accessed by name
+  private Resolver resolver;
+  private ConstantFolder constants;
+  private TypeInference types;
+  // Pending work of the expression being generated: expressions still to be
+  // visited and instructions to emit once their operands are done. Kept on
+  // the heap so deeply nested expressions do not overflow the Java stack.
+  private final ArrayDeque<Object> work = new ArrayDeque<>();
+
+  /**
+   * Makes the generator access variables by the slots {@code resolver}
+   * found for them, instead of by name. The statements passed to
+   * {@link #generateCode(List)} must have been resolved by it.
+   */
+  public void setResolver(Resolver resolver) {
+    this.resolver = resolver;
+  }
+
+  /**
+   * Makes the generator push the value of expressions {@code constants}
+   * found to be constant. The statements passed to
+   * {@link #generateCode(List)} must have been folded by it.
+   */
+  public void setConstantFolder(ConstantFolder constants) {
+    this.constants = constants;
+  }
+
+  /**
+   * Makes the generator use number operations where {@code types} proves
+   * both operands are numbers. The statements passed to
+   * {@link #generateCode(List)} must have been inferred by it.
+   */
+  public void setTypeInference(TypeInference types) {
+    this.types = types;
+  }
 
   public List<Instruction> generateCode(List<Statement> statements) {
+    if (resolver != null && resolver.frameSize() > 0) {
+      emit(Operation.ENTER, resolver.frameSize());
+    }
     for (Statement stmt : statements) {
       execute(stmt);
     }
@@ -30,61 +71,80 @@ public class CodeGenerator implements Expression.Visitor<Void>, Statement.Visito
     return labelCounter++;
   }
 
+  private Instruction load(Object node, Token name) {
+    if (resolver != null) {
+      int slot = resolver.local(node);
+      if (slot >= 0)
+        return new Instruction(Operation.LOAD_LOCAL, slot);
+      int index = resolver.global(node);
+      if (index >= 0)
+        return new Instruction(Operation.LOAD_GLOBAL, index);
+    }
+    return new Instruction(Operation.LOAD, name.lexeme);
+  }
+
+  private Instruction store(Object node, Token name) {
+    if (resolver != null) {
+      int slot = resolver.local(node);
+      if (slot >= 0)
+        return new Instruction(Operation.STORE_LOCAL, slot);
+      int index = resolver.global(node);
+      if (index >= 0)
+        return new Instruction(Operation.STORE_GLOBAL, index);
+    }
+    // A declaration defines the name in the current scope; an assignment
+    // updates the scope that already has it
+    return new Instruction(node instanceof Expression.Assign ? Operation.ASSIGN : Operation.STORE,
+        name.lexeme);
+  }
+
   private void execute(Statement stmt) {
     stmt.accept(this);
   }
 
+  /**
+   * Generates an expression. The expression visitors do not recurse; they
+   * push their operands and the instructions that follow them onto
+   * {@link #work}, which is drained here.
+   */
   private void evaluate(Expression expr) {
-    expr.accept(this);
+    work.push(expr);
+    while (!work.isEmpty()) {
+      Object item = work.pop();
+      if (item instanceof Instruction) {
+        instructions.add((Instruction) item);
+      } else if (constants != null && constants.isConstant((Expression) item)) {
+        emit(Operation.PUSH, constants.value((Expression) item));
+      } else {
+        ((Expression) item).accept(this);
+      }
+    }
   }
 
+  private void defer(Operation operation, Object operand) {
+    work.push(new Instruction(operation, operand));
+  }
+
+  // The expression visitors push in reverse, so the first operand is
+  // generated first.
+
   @Override
   public Void visitBinaryExpression(Expression.Binary expr) {
-    evaluate(expr.left);
-    evaluate(expr.right);
-
-    switch (expr.operator.type) {
-      case PLUS:
-        emit(Operation.ADD);
-        break;
-      case MINUS:
-        emit(Operation.SUB);
-        break;
-      case STAR:
-        emit(Operation.MUL);
-        break;
-      case SLASH:
-        emit(Operation.DIV);
-        break;
-      case MODULO:
-        emit(Operation.MOD);
-        break;
-      case EQUAL_EQUAL:
-        emit(Operation.EQ);
-        break;
-      case BANG_EQUAL:
-        emit(Operation.EQ);
-        emit(Operation.NOT);
-        break;
-      case LESS:
-        emit(Operation.LT);
-        break;
-      case GREATER:
-        emit(Operation.GT);
-        break;
-      case LESS_EQUAL:
-        emit(Operation.LE);
-        break;
-      case GREATER_EQUAL:
-        emit(Operation.GE);
-        break;
+    if (expr.operator.type == TokenType.BANG_EQUAL)
+      defer(Operation.NOT, null);
+    Operation operation = binaryOperation(expr.operator.type);
+    if (isNumber(expr.left) && isNumber(expr.right)) {
+      operation = numberOperation(operation);
     }
+    defer(operation, null);
+    work.push(expr.right);
+    work.push(expr.left);
     return null;
   }
 
   @Override
   public Void visitGroupingExpression(Expression.Grouping expr) {
-    evaluate(expr.expression);
+    work.push(expr.expression);
     return null;
   }
 
@@ -96,53 +156,49 @@ public class CodeGenerator implements Expression.Visitor<Void>, Statement.Visito
 
   @Override
   public Void visitUnaryExpression(Expression.Unary expr) {
-    evaluate(expr.right);
-    switch (expr.operator.type) {
-      case MINUS:
-        emit(Operation.NEG);
-        break;
-      case BANG:
-        emit(Operation.NOT);
-        break;
-    }
+    defer(unaryOperation(expr.operator.type), null);
+    work.push(expr.right);
     return null;
   }
 
   @Override
   public Void visitVariableExpression(Expression.Variable expr) {
-    emit(Operation.LOAD, expr.name.lexeme);
+    instructions.add(load(expr, expr.name));
     return null;
   }
 
   @Override
   public Void visitAssignExpression(Expression.Assign expr) {
-    evaluate(expr.value);
-    emit(Operation.STORE, expr.name.lexeme);
-    emit(Operation.LOAD, expr.name.lexeme);
+    work.push(load(expr, expr.name));
+    work.push(store(expr, expr.name));
+    work.push(expr.value);
     return null;
   }
 
   @Override
   public Void visitLogicalExpression(Expression.Logical expr) {
-    evaluate(expr.left);
-    evaluate(expr.right);
-
-    if (expr.operator.type == TokenType.OR) {
-      emit(Operation.OR);
-    } else { // AND
-      emit(Operation.AND);
+    // A constant left operand that did not decide the result is dropped
+    if (constants != null && constants.isConstant(expr.left)) {
+      work.push(expr.right);
+      return null;
     }
-
+    // The jump keeps the left operand as the result when it decides it,
+    // and skips the right one
+    int end = generateLabel();
+    defer(Operation.LABEL, end);
+    work.push(expr.right);
+    defer(logicalJump(expr.operator.type), end);
+    work.push(expr.left);
     return null;
   }
 
   @Override
   public Void visitCallExpression(Expression.Call expr) {
-    for (Expression argument : expr.arguments) {
-      evaluate(argument);
+    defer(Operation.CALL, expr.arguments.size());
+    work.push(expr.callee);
+    for (int i = expr.arguments.size() - 1; i >= 0; i--) {
+      work.push(expr.arguments.get(i));
     }
-    evaluate(expr.callee);
-    emit(Operation.CALL, expr.arguments.size());
     return null;
   }
 
@@ -191,44 +247,115 @@ public class CodeGenerator implements Expression.Visitor<Void>, Statement.Visito
 
   @Override
   public Void visitBlockStmt(Statement.Block stmt) {
-    emit(Operation.BEGINSCOPE);
+    // Resolved variables live in frame slots, not in scopes
+    boolean scoped = resolver == null || resolver.isScoped(stmt);
+    if (scoped)
+      emit(Operation.BEGINSCOPE);
     for (Statement statement : stmt.statements) {
       execute(statement);
     }
-    emit(Operation.ENDSCOPE);
+    if (scoped)
+      emit(Operation.ENDSCOPE);
     return null;
   }
 
   @Override
   public Void visitFunctionStmt(Statement.Function stmt) {
+    if (stmt.isLazy()) {
+      emit(Operation.PUSHLAZY, deferred.size());
+      storeFunction(stmt);
+      deferred.add(stmt);
+      return null;
+    }
+
     int functionLabel = generateLabel();
     int afterFunction = generateLabel();
 
     emit(Operation.JMP, afterFunction);
 
     emit(Operation.LABEL, functionLabel);
-    emit(Operation.BEGINSCOPE);
+    functionBody(stmt, stmt.body);
+
+    emit(Operation.LABEL, afterFunction);
+
+    emit(Operation.PUSHFUN, functionLabel);
+    storeFunction(stmt);
+
+    return null;
+  }
+
+  private void storeFunction(Statement.Function stmt) {
+    if (resolver == null) {
+      emit(Operation.STOREFUN, stmt.name.lexeme);
+    } else {
+      instructions.add(store(stmt, stmt.name));
+    }
+  }
 
-    int paramCount = stmt.params.size();
-    for (int i = paramCount - 1; i >= 0; i--) {
-      Token param = stmt.params.get(i);
-      emit(Operation.STORE, param.lexeme);
+  /**
+   * Generates the code of a lazy function, the {@code function}th one
+   * visited. Labels continue the numbering of the rest of the program.
+   */
+  @Override
+  public List<Instruction> compileFunction(int function) {
+    Statement.Function stmt = deferred.get(function);
+    List<Instruction> program = instructions;
+    instructions = new ArrayList<>();
+
+    emit(Operation.LABEL, generateLabel());
+    if (constants != null) {
+      constants.foldFunction(stmt);
+    }
+    if (types != null) {
+      types.inferFunction(stmt);
+    }
+    if (resolver != null) {
+      resolver.resolveFunction(stmt);
+    }
+    functionBody(stmt, stmt.getBody());
+
+    List<Instruction> code = instructions;
+    instructions = program;
+    return code;
+  }
+
+  private void functionBody(Statement.Function stmt, List<Statement> body) {
+    List<Token> params = stmt.params;
+    int paramCount = params.size();
+
+    if (resolver != null) {
+      // The parameters are the first slots of the frame
+      emit(Operation.ENTER, resolver.frameSize(stmt));
+      for (int i = paramCount - 1; i >= 0; i--) {
+        emit(Operation.STORE_LOCAL, i);
+      }
+      // Nested functions find captured parameters by name
+      if (resolver.isScoped(stmt)) {
+        emit(Operation.BEGINSCOPE);
+        for (int i = 0; i < paramCount; i++) {
+          if (resolver.isCaptured(params.get(i))) {
+            emit(Operation.LOAD_LOCAL, i);
+            emit(Operation.STORE, params.get(i).lexeme);
+          }
+        }
+      }
+    } else {
+      emit(Operation.BEGINSCOPE);
+      for (int i = paramCount - 1; i >= 0; i--) {
+        Token param = params.get(i);
+        emit(Operation.STORE, param.lexeme);
+      }
     }
 
-    for (Statement statement : stmt.body) {
+    for (Statement statement : body) {
       execute(statement);
     }
 
+    // RET drops the scopes of the call
     emit(Operation.PUSH, null);
     emit(Operation.RET);
-    emit(Operation.ENDSCOPE);
-
-    emit(Operation.LABEL, afterFunction);
-
-    emit(Operation.PUSHFUN, functionLabel);
-    emit(Operation.STOREFUN, stmt.name.lexeme);
-
-    return null;
+    if (resolver == null)
+      emit(Operation.ENDSCOPE);
   }
 
   @Override
@@ -249,7 +376,77 @@ public class CodeGenerator implements Expression.Visitor<Void>, Statement.Visito
     } else {
       emit(Operation.PUSH, null);
     }
-    emit(Operation.STORE, stmt.name.lexeme);
+    instructions.add(store(stmt, stmt.name));
     return null;
   }
+
+  private boolean isNumber(Expression expr) {
+    if (constants != null && constants.isConstant(expr))
+      return constants.value(expr) instanceof Double;
+    return types != null && types.isNumber(expr);
+  }
+
+  private static Operation numberOperation(Operation operation) {
+    switch (operation) {
+      case ADD:
+        return Operation.ADD_NUM;
+      case SUB:
+        return Operation.SUB_NUM;
+      case MUL:
+        return Operation.MUL_NUM;
+      case LT:
+        return Operation.LT_NUM;
+      case GT:
+        return Operation.GT_NUM;
+      case LE:
+        return Operation.LE_NUM;
+      case GE:
+        return Operation.GE_NUM;
+      default:
+        return operation;
+    }
+  }
+
+  private static Operation binaryOperation(TokenType operator) {
+    switch (operator) {
+      case PLUS:
+        return Operation.ADD;
+      case MINUS:
+        return Operation.SUB;
+      case STAR:
+        return Operation.MUL;
+      case SLASH:
+        return Operation.DIV;
+      case MODULO:
+        return Operation.MOD;
+      case EQUAL_EQUAL:
+      case BANG_EQUAL: // followed by NOT
+        return Operation.EQ;
+      case LESS:
+        return Operation.LT;
+      case GREATER:
+        return Operation.GT;
+      case LESS_EQUAL:
+        return Operation.LE;
+      case GREATER_EQUAL:
+        return Operation.GE;
+      default:
+        throw new IllegalArgumentException("Unknown binary operator " + operator);
+    }
+  }
+
+  private static Operation unaryOperation(TokenType operator) {
+    switch (operator) {
+      case MINUS:
+        return Operation.NEG;
+      case BANG:
+        return Operation.NOT;
+      default:
+        throw new IllegalArgumentException("Unknown unary operator " + operator);
+    }
+  }
+
+  private static Operation logicalJump(TokenType operator) {
+    return operator == TokenType.OR ? Operation.JMPT_KEEP : Operation.JMPF_KEEP;
+  }
 }
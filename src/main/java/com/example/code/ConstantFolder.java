@@ -0,0 +1,387 @@
+package com.example.code;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import com.example.parser.Expression;
+import com.example.parser.ParseError;
+import com.example.parser.Statement;
+import com.example.scanner.Diagnostics;
+import com.example.scanner.Token;
+import com.example.scanner.TokenType;
+
+/**
+ * Finds the expressions whose value is known at compile time: arithmetic,
+ * comparisons, logical and unary operators on constants, and reads of
+ * {@code const} variables with a constant initializer. {@link CodeGenerator}
+ * pushes their value instead of generating code to compute them.
+ *
+ * Operations that would fail at run time, such as a division by zero or
+ * arithmetic on a string, are left alone so they still fail there. Since
+ * const values are copied into their uses, assigning to a const or
+ * declaring its name again in the same scope is an error.
+ */
+public class ConstantFolder implements Expression.Visitor<Void>, Statement.Visitor<Void> {
+  private static final Object NOT_CONSTANT = new Object();
+  // Pushed above an expression whose operands are on top of it
+  private static final Object FINISH = new Object();
+
+  /**
+   * A variable declaration; {@code value} is NOT_CONSTANT unless it is a
+   * const with a constant initializer.
+   */
+  private static class Binding {
+    final Object value;
+    final boolean isConst;
+    // Declaration order of globals, so lazy functions only see the ones
+    // declared before them
+    final int order;
+
+    Binding(Object value, boolean isConst, int order) {
+      this.value = value;
+      this.isConst = isConst;
+      this.order = order;
+    }
+  }
+
+  private final Map<Expression, Object> values = new IdentityHashMap<>();
+  private final Map<String, Binding> globals = new HashMap<>();
+  private int globalOrder = 0;
+  private final Map<Statement.Function, Integer> lazyFunctions = new IdentityHashMap<>();
+  // The scopes around lazy functions declared inside functions or blocks
+  private final Map<Statement.Function, List<Map<String, Binding>>> lazyScopes = new IdentityHashMap<>();
+  // The scopes of the function being folded, innermost last; empty at the
+  // top level
+  private List<Map<String, Binding>> scopes = new ArrayList<>();
+  private int visibleGlobals = Integer.MAX_VALUE;
+  private Diagnostics diagnostics;
+  private final ArrayDeque<Object> work = new ArrayDeque<>();
+
+  /**
+   * Makes the folder record assignments to a const and redeclarations of one
+   * in {@code diagnostics} instead of throwing a {@link ParseError}.
+   */
+  public void setDiagnostics(Diagnostics diagnostics) {
+    this.diagnostics = diagnostics;
+  }
+
+  public void fold(List<Statement> statements) {
+    for (Statement statement : statements) {
+      fold(statement);
+    }
+  }
+
+  /**
+   * Folds the body of a lazy function once it has been parsed.
+   */
+  void foldFunction(Statement.Function function) {
+    List<Map<String, Binding>> enclosing = scopes;
+    int enclosingGlobals = visibleGlobals;
+    Integer order = lazyFunctions.get(function);
+    if (order != null) {
+      visibleGlobals = order;
+    }
+
+    // A nested function sees the variables of the functions around it
+    List<Map<String, Binding>> outer = order != null ? lazyScopes.get(function) : enclosing;
+    scopes = outer == null ? new ArrayList<>() : new ArrayList<>(outer);
+    Map<String, Binding> params = new HashMap<>();
+    for (Token param : function.params) {
+      params.put(param.lexeme, new Binding(NOT_CONSTANT, false, 0));
+    }
+    scopes.add(params);
+    for (Statement statement : function.getBody()) {
+      fold(statement);
+    }
+
+    scopes = enclosing;
+    visibleGlobals = enclosingGlobals;
+  }
+
+  public boolean isConstant(Expression expression) {
+    return constant(expression) != NOT_CONSTANT;
+  }
+
+  /**
+   * Returns the value of a constant expression.
+   */
+  public Object value(Expression expression) {
+    Object value = constant(expression);
+    if (value == NOT_CONSTANT)
+      throw new IllegalArgumentException("Not a constant expression");
+    return value;
+  }
+
+  private Object constant(Expression expression) {
+    if (expression instanceof Expression.Literal)
+      return ((Expression.Literal) expression).value;
+    Object value = values.get(expression);
+    if (value == null && !values.containsKey(expression))
+      return NOT_CONSTANT;
+    return value;
+  }
+
+  private void declare(Token name, Object value, boolean isConst) {
+    Map<String, Binding> scope = scopes.isEmpty() ? globals : scopes.get(scopes.size() - 1);
+    Binding previous = scope.get(name.lexeme);
+    if (previous != null && previous.isConst)
+      error(name, "Cannot redeclare const variable.");
+    scope.put(name.lexeme, new Binding(isConst ? value : NOT_CONSTANT, isConst, globalOrder++));
+  }
+
+  private void error(Token name, String message) {
+    String errorMessage = message + " at " + name;
+    if (diagnostics == null)
+      throw new ParseError(errorMessage);
+    diagnostics.report(name.line, errorMessage);
+  }
+
+  private Binding lookup(Token name) {
+    for (int i = scopes.size() - 1; i >= 0; i--) {
+      Binding binding = scopes.get(i).get(name.lexeme);
+      if (binding != null)
+        return binding;
+    }
+    Binding binding = globals.get(name.lexeme);
+    return binding != null && binding.order < visibleGlobals ? binding : null;
+  }
+
+  private void fold(Statement statement) {
+    statement.accept(this);
+  }
+
+  /**
+   * Folds an expression bottom-up without recursing: the visitors push an
+   * expression under FINISH and its operands on top, and the expression is
+   * finished once its operands are.
+   */
+  private void fold(Expression expression) {
+    work.push(expression);
+    while (!work.isEmpty()) {
+      Object item = work.pop();
+      if (item == FINISH) {
+        finish((Expression) work.pop());
+      } else {
+        ((Expression) item).accept(this);
+      }
+    }
+  }
+
+  private void expand(Expression expression, Expression... operands) {
+    work.push(expression);
+    work.push(FINISH);
+    for (int i = operands.length - 1; i >= 0; i--) {
+      work.push(operands[i]);
+    }
+  }
+
+  private void finish(Expression expression) {
+    Object value = NOT_CONSTANT;
+    if (expression instanceof Expression.Binary) {
+      Expression.Binary binary = (Expression.Binary) expression;
+      value = binary(binary.operator, constant(binary.left), constant(binary.right));
+    } else if (expression instanceof Expression.Unary) {
+      Expression.Unary unary = (Expression.Unary) expression;
+      value = unary(unary.operator, constant(unary.right));
+    } else if (expression instanceof Expression.Logical) {
+      Expression.Logical logical = (Expression.Logical) expression;
+      Object left = constant(logical.left);
+      if (left != NOT_CONSTANT) {
+        // The left operand decides, or the result is the right operand
+        boolean isOr = logical.operator.type == TokenType.OR;
+        value = isTruthy(left) == isOr ? left : constant(logical.right);
+      }
+    } else if (expression instanceof Expression.Grouping) {
+      value = constant(((Expression.Grouping) expression).expression);
+    }
+    if (value != NOT_CONSTANT) {
+      values.put(expression, value);
+    }
+  }
+
+  private static Object binary(Token operator, Object left, Object right) {
+    if (left == NOT_CONSTANT || right == NOT_CONSTANT)
+      return NOT_CONSTANT;
+    switch (operator.type) {
+      case EQUAL_EQUAL:
+        return Objects.equals(left, right);
+      case BANG_EQUAL:
+        return !Objects.equals(left, right);
+      default:
+        break;
+    }
+
+    if (!(left instanceof Double) || !(right instanceof Double))
+      return NOT_CONSTANT;
+    double a = (Double) left;
+    double b = (Double) right;
+    switch (operator.type) {
+      case PLUS:
+        return a + b;
+      case MINUS:
+        return a - b;
+      case STAR:
+        return a * b;
+      case SLASH:
+        return b == 0 ? NOT_CONSTANT : a / b;
+      case MODULO:
+        return b == 0 ? NOT_CONSTANT : a % b;
+      case LESS:
+        return a < b;
+      case GREATER:
+        return a > b;
+      case LESS_EQUAL:
+        return a <= b;
+      case GREATER_EQUAL:
+        return a >= b;
+      default:
+        return NOT_CONSTANT;
+    }
+  }
+
+  private static Object unary(Token operator, Object operand) {
+    if (operand == NOT_CONSTANT)
+      return NOT_CONSTANT;
+    switch (operator.type) {
+      case BANG:
+        return !isTruthy(operand);
+      case MINUS:
+        return operand instanceof Double ? -(Double) operand : NOT_CONSTANT;
+      default:
+        return NOT_CONSTANT;
+    }
+  }
+
+  private static boolean isTruthy(Object object) {
+    if (object == null)
+      return false;
+    if (object instanceof Boolean)
+      return (Boolean) object;
+    return true;
+  }
+
+  @Override
+  public Void visitBlockStmt(Statement.Block stmt) {
+    scopes.add(new HashMap<>());
+    for (Statement statement : stmt.statements) {
+      fold(statement);
+    }
+    scopes.remove(scopes.size() - 1);
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Statement.Expression stmt) {
+    fold(stmt.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Statement.Function stmt) {
+    declare(stmt.name, NOT_CONSTANT, false);
+    if (stmt.isLazy()) {
+      lazyFunctions.put(stmt, Math.min(globalOrder, visibleGlobals));
+      lazyScopes.put(stmt, new ArrayList<>(scopes));
+    } else {
+      foldFunction(stmt);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(Statement.If stmt) {
+    fold(stmt.condition);
+    fold(stmt.thenBranch);
+    if (stmt.elseBranch != null) {
+      fold(stmt.elseBranch);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Statement.Return stmt) {
+    if (stmt.value != null) {
+      fold(stmt.value);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Statement.Var stmt) {
+    Object value = NOT_CONSTANT;
+    if (stmt.initializer != null) {
+      fold(stmt.initializer);
+      value = constant(stmt.initializer);
+    }
+    declare(stmt.name, value, stmt.isConst);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Statement.While stmt) {
+    fold(stmt.condition);
+    fold(stmt.body);
+    return null;
+  }
+
+  @Override
+  public Void visitAssignExpression(Expression.Assign expr) {
+    Binding binding = lookup(expr.name);
+    if (binding != null && binding.isConst)
+      error(expr.name, "Cannot assign to const variable.");
+    work.push(expr.value);
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpression(Expression.Binary expr) {
+    expand(expr, expr.left, expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpression(Expression.Call expr) {
+    work.push(expr.callee);
+    for (Expression argument : expr.arguments) {
+      work.push(argument);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpression(Expression.Grouping expr) {
+    expand(expr, expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpression(Expression.Literal expr) {
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpression(Expression.Logical expr) {
+    expand(expr, expr.left, expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpression(Expression.Unary expr) {
+    expand(expr, expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpression(Expression.Variable expr) {
+    Binding binding = lookup(expr.name);
+    if (binding != null && binding.value != NOT_CONSTANT) {
+      values.put(expr, binding.value);
+    }
+    return null;
+  }
+}
@@ -0,0 +1,11 @@
+package com.example.code;
+
+import java.util.List;
+
+/**
+ * Compiles the body of a function that was left out of the generated code.
+ * The code starts with the function's LABEL, like an inline function.
+ */
+public interface FunctionCompiler {
+  List<Instruction> compileFunction(int function);
+}
@@ -4,14 +4,21 @@ public class Instruction {
   public final Operation operation;
   public final Object operand;
   public final OperandType operandType;
+  // Operands after the first, which only superinstructions have
+  private final Object[] moreOperands;
 
   public Instruction(Operation operation, Object operand) {
+    this(operation, operand, new Object[0]);
+  }
+
+  public Instruction(Operation operation, Object operand, Object... moreOperands) {
     if (operation == null) {
       throw new IllegalArgumentException("Operation cannot be null");
     }
     this.operation = operation;
     this.operand = operand;
     this.operandType = OperandType.getType(operand);
+    this.moreOperands = moreOperands;
   }
 
   // Constructor for operations without operands (like ADD, SUB, etc.)
@@ -22,16 +29,41 @@ public class Instruction {
     this.operation = operation;
     this.operand = null;
     this.operandType = OperandType.NONE;
+    this.moreOperands = new Object[0];
   }
 
   public boolean hasOperand() {
     return operandType != OperandType.NONE;
   }
 
+  public int operandCount() {
+    return hasOperand() ? 1 + moreOperands.length : 0;
+  }
+
+  /**
+   * Returns operand {@code index}; operand 0 is {@link #operand}.
+   */
+  public Object getOperand(int index) {
+    return index == 0 ? operand : moreOperands[index - 1];
+  }
+
+  /**
+   * Returns a copy with {@code operand} as the first operand, such as a
+   * jump with its label replaced by an address.
+   */
+  public Instruction withOperand(Object operand) {
+    return new Instruction(operation, operand, moreOperands);
+  }
+
   @Override
   public String toString() {
     if (hasOperand()) {
-      return String.format("%s %s (%s)", operation, operand, operandType);
+      StringBuilder builder = new StringBuilder(
+          String.format("%s %s (%s)", operation, operand, operandType));
+      for (Object more : moreOperands) {
+        builder.append(' ').append(more);
+      }
+      return builder.toString();
     } else {
       return operation.toString();
     }
@@ -62,4 +94,8 @@ public class Instruction {
   public int getLabelOperand() {
     return (int) getNumberOperand();
   }
+
+  public int getIntOperand() {
+    return (int) getNumberOperand();
+  }
 }
@@ -0,0 +1,80 @@
+package com.example.code;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Resolves labels to instruction addresses. The operands of the jumps and
+ * of PUSHFUN name a label in generated code; after linking they hold the
+ * address of the first instruction after that label, and the LABEL
+ * instructions themselves are gone.
+ */
+public class Linker {
+  private Linker() {
+  }
+
+  public static List<Instruction> link(List<Instruction> code) {
+    return link(code, 0);
+  }
+
+  /**
+   * Links {@code code} for being placed at address {@code base}, as lazily
+   * compiled functions are. Code without labels is returned as it is.
+   */
+  public static List<Instruction> link(List<Instruction> code, int base) {
+    // Label ids are handed out densely, so an array maps them to addresses
+    int[] addresses = new int[16];
+    Arrays.fill(addresses, -1);
+    int address = base;
+    boolean labels = false;
+
+    for (Instruction instruction : code) {
+      if (instruction.operation != Operation.LABEL) {
+        address++;
+        continue;
+      }
+      int label = instruction.getLabelOperand();
+      if (label < 0)
+        throw new IllegalArgumentException("Invalid label " + label);
+      if (label >= addresses.length) {
+        int size = addresses.length;
+        addresses = Arrays.copyOf(addresses, Math.max(size * 2, label + 1));
+        Arrays.fill(addresses, size, addresses.length, -1);
+      }
+      if (addresses[label] >= 0)
+        throw new IllegalArgumentException("Duplicate label " + label);
+      addresses[label] = address;
+      labels = true;
+    }
+    if (!labels)
+      return code;
+
+    List<Instruction> linked = new ArrayList<>(address - base);
+    for (Instruction instruction : code) {
+      switch (instruction.operation) {
+        case LABEL:
+          break;
+        case JMP:
+        case JMPF:
+        case JMPF_KEEP:
+        case JMPT_KEEP:
+        case JNLT_LOCAL_CONST:
+        case JNLT_LOCAL_LOCAL:
+        case PUSHFUN:
+          linked.add(instruction.withOperand(resolve(addresses, instruction.getLabelOperand())));
+          break;
+        default:
+          linked.add(instruction);
+          break;
+      }
+    }
+    return linked;
+  }
+
+  private static int resolve(int[] addresses, int label) {
+    if (label < 0 || label >= addresses.length || addresses[label] < 0)
+      throw new IllegalArgumentException("Label " + label + " not found");
+    return addresses[label];
+  }
+}
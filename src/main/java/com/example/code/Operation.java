@@ -4,6 +4,7 @@ public enum Operation {
   // Stack Operations
   PUSH, // Push a value onto the stack
   POP, // Remove top value from stack
+  DUP, // Push the top value again
 
   // Arithmetic Operations
   ADD, // Add top two values
@@ -15,6 +16,7 @@ public enum Operation {
 
   // Comparison Operations
   EQ, // Check if top two values are equal
+  NE, // Check if top two values are not equal
   NOT, // Logical NOT of top value
   LT, // Less than comparison
   GT, // Greater than comparison
@@ -25,14 +27,30 @@ public enum Operation {
   AND, // Logical AND
   OR, // Logical OR
 
+  // Operations on values known to be numbers, selected by TypeInference
+  ADD_NUM, // Add top two numbers
+  SUB_NUM, // Subtract top number from second number
+  MUL_NUM, // Multiply top two numbers
+  LT_NUM, // Less than comparison of numbers
+  GT_NUM, // Greater than comparison of numbers
+  LE_NUM, // Less than or equal comparison of numbers
+  GE_NUM, // Greater than or equal comparison of numbers
+
   // Variable Operations
   LOAD, // Load variable onto stack
   STORE, // Store top value in variable
+  ASSIGN, // Store top value in the nearest scope that has the variable
+  LOAD_LOCAL, // Load a slot of the current frame onto stack
+  STORE_LOCAL, // Store top value in a slot of the current frame
+  LOAD_GLOBAL, // Load a global by index onto stack
+  STORE_GLOBAL, // Store top value in a global by index
 
   // Function Operations
   CALL, // Call function
   RET, // Return from function
+  ENTER, // Give the current call a frame with the operand's number of slots
   PUSHFUN, // Push function reference
+  PUSHLAZY, // Push function that is compiled on its first call
   STOREFUN, // Store function reference
 
   // Scope Operations
@@ -42,7 +60,15 @@ public enum Operation {
   // Control Flow
   JMP, // Unconditional jump
   JMPF, // Jump if false
-  LABEL; // Define label for jumps
+  JMPF_KEEP, // Jump if false, keeping the value; otherwise pop it
+  JMPT_KEEP, // Jump if true, keeping the value; otherwise pop it
+  LABEL, // Define label for jumps
+
+  // Superinstructions, selected by SuperinstructionSelector
+  JNLT_LOCAL_CONST, // Jump unless local < number: LOAD_LOCAL; PUSH; LT; JMPF
+  JNLT_LOCAL_LOCAL, // Jump unless local < local: LOAD_LOCAL; LOAD_LOCAL; LT; JMPF
+  LOAD_LOAD_ADD, // Push the sum of two locals: LOAD_LOCAL; LOAD_LOCAL; ADD
+  INC_LOCAL; // Add a number to a local: LOAD_LOCAL; PUSH; ADD; STORE_LOCAL
 
   @Override
   public String toString() {
@@ -0,0 +1,192 @@
+package com.example.code;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Rewrites short instruction sequences into cheaper ones. It works on code
+ * before linking, where every jump target is a LABEL, so no rule has to
+ * move jump targets. Rules are applied until none matches any more, and
+ * each rule counts how often it matched and how many instructions it
+ * removed.
+ */
+public class PeepholeOptimizer {
+  public enum Rule {
+    // STORE x; LOAD x; POP -> STORE x, an assignment used as a statement
+    STORE_LOAD_POP,
+    // STORE x; LOAD x -> DUP; STORE x, an assignment used as a value. Not
+    // for names, which LOAD may find among the functions first
+    STORE_LOAD,
+    // EQ; NOT -> NE
+    EQ_NOT,
+    // JMP L with only labels up to LABEL L is dropped
+    JUMP_TO_NEXT,
+    // Code after JMP or RET up to the next LABEL is dropped
+    UNREACHABLE
+  }
+
+  private final Set<Rule> rules;
+  private final Map<Rule, Integer> applied = new EnumMap<>(Rule.class);
+  private final Map<Rule, Integer> removed = new EnumMap<>(Rule.class);
+
+  public PeepholeOptimizer() {
+    this(EnumSet.allOf(Rule.class));
+  }
+
+  public PeepholeOptimizer(Set<Rule> rules) {
+    this.rules = EnumSet.noneOf(Rule.class);
+    this.rules.addAll(rules);
+    for (Rule rule : Rule.values()) {
+      applied.put(rule, 0);
+      removed.put(rule, 0);
+    }
+  }
+
+  public List<Instruction> optimize(List<Instruction> code) {
+    boolean labels = false;
+    boolean jumps = false;
+    for (Instruction instruction : code) {
+      labels |= instruction.operation == Operation.LABEL;
+      jumps |= isJump(instruction.operation) || instruction.operation == Operation.PUSHFUN;
+    }
+    if (jumps && !labels)
+      throw new IllegalArgumentException("Cannot optimize linked code");
+
+    List<Instruction> current = code;
+    boolean changed = true;
+    while (changed) {
+      List<Instruction> next = new ArrayList<>(current.size());
+      changed = false;
+      for (int i = 0; i < current.size();) {
+        int consumed = rewrite(current, i, next);
+        if (consumed > 0) {
+          i += consumed;
+          changed = true;
+        } else {
+          next.add(current.get(i++));
+        }
+      }
+      current = next;
+    }
+    return current;
+  }
+
+  /**
+   * Tries the rules at {@code code[i]}. If one matches, its replacement is
+   * added to {@code out} and the number of instructions it replaced is
+   * returned; otherwise 0.
+   */
+  private int rewrite(List<Instruction> code, int i, List<Instruction> out) {
+    Instruction first = code.get(i);
+    Instruction second = i + 1 < code.size() ? code.get(i + 1) : null;
+
+    if (second != null && loadOf(first.operation) == second.operation
+        && Objects.equals(first.operand, second.operand)) {
+      if (rules.contains(Rule.STORE_LOAD_POP) && i + 2 < code.size()
+          && code.get(i + 2).operation == Operation.POP) {
+        out.add(first);
+        count(Rule.STORE_LOAD_POP, 2);
+        return 3;
+      }
+      if (rules.contains(Rule.STORE_LOAD) && first.operation != Operation.STORE
+          && first.operation != Operation.ASSIGN) {
+        out.add(new Instruction(Operation.DUP));
+        out.add(first);
+        count(Rule.STORE_LOAD, 0);
+        return 2;
+      }
+    }
+
+    if (rules.contains(Rule.EQ_NOT) && second != null
+        && first.operation == Operation.EQ && second.operation == Operation.NOT) {
+      out.add(new Instruction(Operation.NE));
+      count(Rule.EQ_NOT, 1);
+      return 2;
+    }
+
+    if (rules.contains(Rule.JUMP_TO_NEXT) && first.operation == Operation.JMP) {
+      for (int j = i + 1; j < code.size() && code.get(j).operation == Operation.LABEL; j++) {
+        if (code.get(j).getLabelOperand() == first.getLabelOperand()) {
+          count(Rule.JUMP_TO_NEXT, 1);
+          return 1;
+        }
+      }
+    }
+
+    if (rules.contains(Rule.UNREACHABLE)
+        && (first.operation == Operation.JMP || first.operation == Operation.RET)) {
+      int end = i + 1;
+      while (end < code.size() && code.get(end).operation != Operation.LABEL) {
+        end++;
+      }
+      if (end > i + 1) {
+        out.add(first);
+        count(Rule.UNREACHABLE, end - i - 1);
+        return end - i;
+      }
+    }
+    return 0;
+  }
+
+  private static Operation loadOf(Operation store) {
+    switch (store) {
+      case STORE:
+      case ASSIGN:
+        return Operation.LOAD;
+      case STORE_LOCAL:
+        return Operation.LOAD_LOCAL;
+      case STORE_GLOBAL:
+        return Operation.LOAD_GLOBAL;
+      default:
+        return null;
+    }
+  }
+
+  private static boolean isJump(Operation operation) {
+    switch (operation) {
+      case JMP:
+      case JMPF:
+      case JMPF_KEEP:
+      case JMPT_KEEP:
+      case JNLT_LOCAL_CONST:
+      case JNLT_LOCAL_LOCAL:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private void count(Rule rule, int instructions) {
+    applied.merge(rule, 1, Integer::sum);
+    removed.merge(rule, instructions, Integer::sum);
+  }
+
+  /**
+   * Returns how often {@code rule} matched so far.
+   */
+  public int getApplied(Rule rule) {
+    return applied.get(rule);
+  }
+
+  /**
+   * Returns how many instructions {@code rule} removed so far.
+   */
+  public int getRemoved(Rule rule) {
+    return removed.get(rule);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder report = new StringBuilder();
+    for (Rule rule : Rule.values()) {
+      report.append(String.format("%-15s %6d applied %6d removed%n",
+          rule, applied.get(rule), removed.get(rule)));
+    }
+    return report.toString();
+  }
+}
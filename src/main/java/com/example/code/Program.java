@@ -0,0 +1,677 @@
+package com.example.code;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A linked program in compact form. Each instruction is an opcode in
+ * {@link #code}, followed by its operands: one for the operations that
+ * take one, and up to three for superinstructions (see {@link #width}).
+ * Operands are plain ints: slots, code offsets, or indices into the
+ * constant pools for numbers, strings and function entry points. PUSH is
+ * split by the type of its value, so no operand has to be boxed or checked
+ * at run time.
+ *
+ * Jump targets and function entry points are offsets into {@link #code}.
+ * Code can be appended, which is how lazily compiled functions join the
+ * program.
+ */
+public class Program {
+  public static final int PUSH_NUMBER = 0;
+  public static final int PUSH_STRING = 1;
+  public static final int PUSH_TRUE = 2;
+  public static final int PUSH_FALSE = 3;
+  public static final int PUSH_NIL = 4;
+  public static final int POP = 5;
+  public static final int ADD = 6;
+  public static final int SUB = 7;
+  public static final int MUL = 8;
+  public static final int DIV = 9;
+  public static final int MOD = 10;
+  public static final int NEG = 11;
+  public static final int EQ = 12;
+  public static final int NOT = 13;
+  public static final int LT = 14;
+  public static final int GT = 15;
+  public static final int LE = 16;
+  public static final int GE = 17;
+  public static final int AND = 18;
+  public static final int OR = 19;
+  public static final int LOAD = 20;
+  public static final int STORE = 21;
+  public static final int LOAD_LOCAL = 22;
+  public static final int STORE_LOCAL = 23;
+  public static final int LOAD_GLOBAL = 24;
+  public static final int STORE_GLOBAL = 25;
+  public static final int CALL = 26;
+  public static final int RET = 27;
+  public static final int ENTER = 28;
+  public static final int PUSHFUN = 29;
+  public static final int PUSHLAZY = 30;
+  public static final int STOREFUN = 31;
+  public static final int BEGINSCOPE = 32;
+  public static final int ENDSCOPE = 33;
+  public static final int JMP = 34;
+  public static final int JMPF = 35;
+  public static final int DUP = 36;
+  public static final int NE = 37;
+  public static final int JMPF_KEEP = 38;
+  public static final int JMPT_KEEP = 39;
+  public static final int JNLT_LOCAL_CONST = 40;
+  public static final int JNLT_LOCAL_LOCAL = 41;
+  public static final int LOAD_LOAD_ADD = 42;
+  public static final int INC_LOCAL = 43;
+  public static final int ADD_NUM = 44;
+  public static final int SUB_NUM = 45;
+  public static final int MUL_NUM = 46;
+  public static final int LT_NUM = 47;
+  public static final int GT_NUM = 48;
+  public static final int LE_NUM = 49;
+  public static final int GE_NUM = 50;
+  public static final int ASSIGN = 51;
+  static final int OPCODE_COUNT = 52;
+
+  private static final String[] NAMES = {
+      "PUSH", "PUSH", "PUSH", "PUSH", "PUSH", "POP", "ADD", "SUB", "MUL", "DIV", "MOD", "NEG",
+      "EQ", "NOT", "LT", "GT", "LE", "GE", "AND", "OR", "LOAD", "STORE", "LOAD_LOCAL",
+      "STORE_LOCAL", "LOAD_GLOBAL", "STORE_GLOBAL", "CALL", "RET", "ENTER", "PUSHFUN",
+      "PUSHLAZY", "STOREFUN", "BEGINSCOPE", "ENDSCOPE", "JMP", "JMPF", "DUP", "NE",
+      "JMPF_KEEP", "JMPT_KEEP", "JNLT_LOCAL_CONST", "JNLT_LOCAL_LOCAL", "LOAD_LOAD_ADD",
+      "INC_LOCAL", "ADD_NUM", "SUB_NUM", "MUL_NUM", "LT_NUM", "GT_NUM", "LE_NUM", "GE_NUM",
+      "ASSIGN" };
+
+  private int[] code = new int[64];
+  private int length = 0;
+  private int size = 0;
+
+  private double[] numbers = new double[16];
+  private int numberCount = 0;
+  private final Map<Double, Integer> numberIndex = new HashMap<>();
+  private String[] strings = new String[16];
+  private int stringCount = 0;
+  private final Map<String, Integer> stringIndex = new HashMap<>();
+  private int[] functions = new int[8];
+  private int functionCount = 0;
+
+  public Program() {
+  }
+
+  /**
+   * Creates a program from its parts, as read from a file by
+   * {@link ProgramLoader}.
+   */
+  Program(int[] code, int size, double[] numbers, String[] strings, int[] functions) {
+    this.code = code;
+    this.length = code.length;
+    this.size = size;
+    this.numbers = numbers;
+    this.numberCount = numbers.length;
+    this.strings = strings;
+    this.stringCount = strings.length;
+    this.functions = functions;
+    this.functionCount = functions.length;
+    for (int i = 0; i < numbers.length; i++) {
+      numberIndex.putIfAbsent(numbers[i], i);
+    }
+    // A name that appears twice shares its first String, so every name has
+    // one instance, as in a program that was encoded
+    for (int i = 0; i < strings.length; i++) {
+      Integer first = stringIndex.putIfAbsent(strings[i], i);
+      if (first != null)
+        strings[i] = strings[first];
+    }
+  }
+
+  /**
+   * Returns a program with the same code and pools that can be appended to
+   * without changing this one.
+   */
+  public Program copy() {
+    return new Program(Arrays.copyOf(code, length), size, Arrays.copyOf(numbers, numberCount),
+        Arrays.copyOf(strings, stringCount), Arrays.copyOf(functions, functionCount));
+  }
+
+  /**
+   * Encodes {@code instructions}, linking them first if they still have
+   * labels.
+   */
+  public static Program encode(List<Instruction> instructions) {
+    Program program = new Program();
+    program.append(instructions);
+    return program;
+  }
+
+  /**
+   * Appends code whose labels are private to it, such as a compiled lazy
+   * function, and returns the offset it starts at.
+   */
+  public int append(List<Instruction> instructions) {
+    int base = size;
+    List<Instruction> linked = Linker.link(instructions, base);
+
+    // Instruction addresses are turned into code offsets
+    int[] offsets = new int[linked.size() + 1];
+    int offset = length;
+    for (int i = 0; i < linked.size(); i++) {
+      offsets[i] = offset;
+      offset += width(opcode(linked.get(i)));
+    }
+    offsets[linked.size()] = offset;
+    if (offset > code.length) {
+      code = Arrays.copyOf(code, Math.max(offset, code.length * 2));
+    }
+
+    int start = length;
+    for (Instruction instruction : linked) {
+      int opcode = opcode(instruction);
+      code[length++] = opcode;
+      if (hasOperand(opcode)) {
+        code[length++] = operand(opcode, instruction, offsets, base);
+      }
+      for (int i = 1; i < width(opcode) - 1; i++) {
+        Number operand = (Number) instruction.getOperand(i);
+        code[length++] = isNumberOperand(opcode, i) ? addNumber(operand.doubleValue()) : operand.intValue();
+      }
+    }
+    size += linked.size();
+    return start;
+  }
+
+  private int operand(int opcode, Instruction instruction, int[] offsets, int base) {
+    switch (opcode) {
+      case PUSH_NUMBER:
+        return addNumber(((Number) instruction.operand).doubleValue());
+      case PUSH_STRING:
+      case LOAD:
+      case STORE:
+      case ASSIGN:
+      case STOREFUN:
+        return addString(instruction.getStringOperand());
+      case JMP:
+      case JMPF:
+      case JMPF_KEEP:
+      case JMPT_KEEP:
+      case JNLT_LOCAL_CONST:
+      case JNLT_LOCAL_LOCAL:
+        return offsets[target(instruction, offsets, base)];
+      case PUSHFUN:
+        return addFunction(offsets[target(instruction, offsets, base)]);
+      case CALL:
+        return instruction.hasOperand() ? instruction.getIntOperand() : 0;
+      default:
+        return instruction.getIntOperand();
+    }
+  }
+
+  private static int target(Instruction instruction, int[] offsets, int base) {
+    int target = instruction.getLabelOperand() - base;
+    if (target < 0 || target >= offsets.length)
+      throw new IllegalArgumentException("Address out of range: " + instruction);
+    return target;
+  }
+
+  private static int opcode(Instruction instruction) {
+    switch (instruction.operation) {
+      case PUSH:
+        if (instruction.operand == null)
+          return PUSH_NIL;
+        switch (instruction.operandType) {
+          case NUMBER:
+            return PUSH_NUMBER;
+          case STRING:
+            return PUSH_STRING;
+          case BOOLEAN:
+            return instruction.getBooleanOperand() ? PUSH_TRUE : PUSH_FALSE;
+          default:
+            throw new IllegalArgumentException("Cannot push " + instruction.operand);
+        }
+      case POP:
+        return POP;
+      case DUP:
+        return DUP;
+      case ADD:
+        return ADD;
+      case SUB:
+        return SUB;
+      case MUL:
+        return MUL;
+      case DIV:
+        return DIV;
+      case MOD:
+        return MOD;
+      case NEG:
+        return NEG;
+      case EQ:
+        return EQ;
+      case NE:
+        return NE;
+      case NOT:
+        return NOT;
+      case LT:
+        return LT;
+      case GT:
+        return GT;
+      case LE:
+        return LE;
+      case GE:
+        return GE;
+      case AND:
+        return AND;
+      case OR:
+        return OR;
+      case ADD_NUM:
+        return ADD_NUM;
+      case SUB_NUM:
+        return SUB_NUM;
+      case MUL_NUM:
+        return MUL_NUM;
+      case LT_NUM:
+        return LT_NUM;
+      case GT_NUM:
+        return GT_NUM;
+      case LE_NUM:
+        return LE_NUM;
+      case GE_NUM:
+        return GE_NUM;
+      case LOAD:
+        return LOAD;
+      case STORE:
+        return STORE;
+      case ASSIGN:
+        return ASSIGN;
+      case LOAD_LOCAL:
+        return LOAD_LOCAL;
+      case STORE_LOCAL:
+        return STORE_LOCAL;
+      case LOAD_GLOBAL:
+        return LOAD_GLOBAL;
+      case STORE_GLOBAL:
+        return STORE_GLOBAL;
+      case CALL:
+        return CALL;
+      case RET:
+        return RET;
+      case ENTER:
+        return ENTER;
+      case PUSHFUN:
+        return PUSHFUN;
+      case PUSHLAZY:
+        return PUSHLAZY;
+      case STOREFUN:
+        return STOREFUN;
+      case BEGINSCOPE:
+        return BEGINSCOPE;
+      case ENDSCOPE:
+        return ENDSCOPE;
+      case JMP:
+        return JMP;
+      case JMPF:
+        return JMPF;
+      case JMPF_KEEP:
+        return JMPF_KEEP;
+      case JMPT_KEEP:
+        return JMPT_KEEP;
+      case JNLT_LOCAL_CONST:
+        return JNLT_LOCAL_CONST;
+      case JNLT_LOCAL_LOCAL:
+        return JNLT_LOCAL_LOCAL;
+      case LOAD_LOAD_ADD:
+        return LOAD_LOAD_ADD;
+      case INC_LOCAL:
+        return INC_LOCAL;
+      default:
+        throw new IllegalArgumentException("Cannot encode " + instruction);
+    }
+  }
+
+  public static boolean hasOperand(int opcode) {
+    switch (opcode) {
+      case PUSH_NUMBER:
+      case PUSH_STRING:
+      case LOAD:
+      case STORE:
+      case ASSIGN:
+      case LOAD_LOCAL:
+      case STORE_LOCAL:
+      case LOAD_GLOBAL:
+      case STORE_GLOBAL:
+      case CALL:
+      case ENTER:
+      case PUSHFUN:
+      case PUSHLAZY:
+      case STOREFUN:
+      case JMP:
+      case JMPF:
+      case JMPF_KEEP:
+      case JMPT_KEEP:
+      case JNLT_LOCAL_CONST:
+      case JNLT_LOCAL_LOCAL:
+      case LOAD_LOAD_ADD:
+      case INC_LOCAL:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Returns the number of ints an instruction takes: its opcode and its
+   * operands.
+   */
+  public static int width(int opcode) {
+    switch (opcode) {
+      case JNLT_LOCAL_CONST:
+      case JNLT_LOCAL_LOCAL:
+        return 4;
+      case LOAD_LOAD_ADD:
+      case INC_LOCAL:
+        return 3;
+      default:
+        return hasOperand(opcode) ? 2 : 1;
+    }
+  }
+
+  /**
+   * Tells whether operand {@code index} of {@code opcode} is an index into
+   * the number pool.
+   */
+  private static boolean isNumberOperand(int opcode, int index) {
+    switch (opcode) {
+      case PUSH_NUMBER:
+        return index == 0;
+      case JNLT_LOCAL_CONST:
+        return index == 2;
+      case INC_LOCAL:
+        return index == 1;
+      default:
+        return false;
+    }
+  }
+
+  private int addNumber(double value) {
+    Integer index = numberIndex.get(value);
+    if (index == null) {
+      if (numberCount == numbers.length)
+        numbers = Arrays.copyOf(numbers, numberCount * 2);
+      index = numberCount;
+      numbers[numberCount++] = value;
+      numberIndex.put(value, index);
+    }
+    return index;
+  }
+
+  private int addString(String value) {
+    Integer index = stringIndex.get(value);
+    if (index == null) {
+      if (stringCount == strings.length)
+        strings = Arrays.copyOf(strings, stringCount * 2);
+      index = stringCount;
+      strings[stringCount++] = value;
+      stringIndex.put(value, index);
+    }
+    return index;
+  }
+
+  private int addFunction(int entry) {
+    if (functionCount == functions.length)
+      functions = Arrays.copyOf(functions, functionCount * 2);
+    functions[functionCount] = entry;
+    return functionCount++;
+  }
+
+  /**
+   * Returns the code array. It may be longer than {@link #length()}, and is
+   * replaced when code is appended.
+   */
+  public int[] code() {
+    return code;
+  }
+
+  public int length() {
+    return length;
+  }
+
+  /**
+   * Returns the number of instructions.
+   */
+  public int size() {
+    return size;
+  }
+
+  public double number(int index) {
+    return numbers[index];
+  }
+
+  public int numberCount() {
+    return numberCount;
+  }
+
+  /**
+   * Returns a string from the pool. Each distinct string has one instance,
+   * so names can be compared by identity.
+   */
+  public String string(int index) {
+    return strings[index];
+  }
+
+  public int stringCount() {
+    return stringCount;
+  }
+
+  /**
+   * Returns the code offset of a function pushed by PUSHFUN.
+   */
+  public int function(int index) {
+    return functions[index];
+  }
+
+  public int functionCount() {
+    return functionCount;
+  }
+
+  /**
+   * Checks that every opcode is known and every operand refers to a pool
+   * entry, instruction or local slot that exists, so a program from outside
+   * cannot make the machine read out of bounds. Returns the number of
+   * instructions.
+   */
+  int validate() {
+    // Where instructions start; jumps may also go to the end of the code
+    boolean[] starts = new boolean[length + 1];
+    starts[length] = true;
+    int count = 0;
+    for (int offset = 0; offset < length; offset += width(code[offset])) {
+      int opcode = code[offset];
+      if (opcode < 0 || opcode >= OPCODE_COUNT)
+        throw new IllegalArgumentException("Unknown opcode " + opcode + " at " + offset);
+      if (offset + width(opcode) > length)
+        throw new IllegalArgumentException("Missing operand at " + offset);
+      starts[offset] = true;
+      count++;
+    }
+
+    for (int offset = 0; offset < length; offset += width(code[offset])) {
+      int opcode = code[offset];
+      if (!hasOperand(opcode))
+        continue;
+      for (int i = 1; i < width(opcode) - 1; i++) {
+        if (isNumberOperand(opcode, i)) {
+          checkRange(code[offset + 1 + i], numberCount, "number", offset);
+        } else {
+          checkRange(code[offset + 1 + i], Integer.MAX_VALUE, "operand", offset);
+        }
+      }
+      int operand = code[offset + 1];
+      switch (opcode) {
+        case PUSH_NUMBER:
+          checkRange(operand, numberCount, "number", offset);
+          break;
+        case PUSH_STRING:
+        case LOAD:
+        case STORE:
+        case ASSIGN:
+        case STOREFUN:
+          checkRange(operand, stringCount, "string", offset);
+          break;
+        case PUSHFUN:
+          checkRange(operand, functionCount, "function", offset);
+          break;
+        case JMP:
+        case JMPF:
+        case JMPF_KEEP:
+        case JMPT_KEEP:
+        case JNLT_LOCAL_CONST:
+        case JNLT_LOCAL_LOCAL:
+          checkRange(operand, length + 1, "jump target", offset);
+          if (!starts[operand])
+            throw new IllegalArgumentException("Jump into an instruction at " + offset);
+          break;
+        default:
+          checkRange(operand, Integer.MAX_VALUE, "operand", offset);
+          break;
+      }
+    }
+    for (int i = 0; i < functionCount; i++) {
+      if (functions[i] < 0 || functions[i] > length || !starts[functions[i]])
+        throw new IllegalArgumentException("Invalid function entry " + functions[i]);
+    }
+    checkFrames();
+    return count;
+  }
+
+  /**
+   * Checks that local slots are within the frame of the last ENTER, along
+   * every path from the start of the code and from each function entry.
+   * Code has no slots until it enters a frame, and each instruction must
+   * be reached with the same frame size on all paths.
+   */
+  private void checkFrames() {
+    int[] frameSizes = new int[length];
+    Arrays.fill(frameSizes, -1);
+    int[] pending = new int[length];
+    int top = 0;
+    top = reach(0, 0, frameSizes, pending, top);
+    for (int i = 0; i < functionCount; i++) {
+      top = reach(functions[i], 0, frameSizes, pending, top);
+    }
+
+    while (top > 0) {
+      int offset = pending[--top];
+      int opcode = code[offset];
+      int size = frameSizes[offset];
+      switch (opcode) {
+        case ENTER:
+          size = code[offset + 1];
+          break;
+        case LOAD_LOCAL:
+        case STORE_LOCAL:
+        case INC_LOCAL:
+          checkRange(code[offset + 1], size, "local slot", offset);
+          break;
+        case LOAD_LOAD_ADD:
+          checkRange(code[offset + 1], size, "local slot", offset);
+          checkRange(code[offset + 2], size, "local slot", offset);
+          break;
+        case JNLT_LOCAL_LOCAL:
+          checkRange(code[offset + 3], size, "local slot", offset);
+          // Falls through
+        case JNLT_LOCAL_CONST:
+          checkRange(code[offset + 2], size, "local slot", offset);
+          break;
+      }
+
+      switch (opcode) {
+        case RET:
+          break;
+        case JMP:
+          top = reach(code[offset + 1], size, frameSizes, pending, top);
+          break;
+        case JMPF:
+        case JMPF_KEEP:
+        case JMPT_KEEP:
+        case JNLT_LOCAL_CONST:
+        case JNLT_LOCAL_LOCAL:
+          top = reach(code[offset + 1], size, frameSizes, pending, top);
+          top = reach(offset + width(opcode), size, frameSizes, pending, top);
+          break;
+        default:
+          top = reach(offset + width(opcode), size, frameSizes, pending, top);
+          break;
+      }
+    }
+  }
+
+  /**
+   * Records that the instruction at {@code offset} runs with {@code size}
+   * slots and queues it the first time. Returns the new top of
+   * {@code pending}.
+   */
+  private int reach(int offset, int size, int[] frameSizes, int[] pending, int top) {
+    if (offset == length)
+      return top;
+    if (frameSizes[offset] < 0) {
+      frameSizes[offset] = size;
+      pending[top++] = offset;
+    } else if (frameSizes[offset] != size) {
+      throw new IllegalArgumentException("Frame size differs between paths to " + offset);
+    }
+    return top;
+  }
+
+  private static void checkRange(int value, int limit, String what, int offset) {
+    if (value < 0 || value >= limit)
+      throw new IllegalArgumentException("Invalid " + what + " " + value + " at " + offset);
+  }
+
+  /**
+   * Describes the instruction at code offset {@code offset}.
+   */
+  public String instructionAt(int offset) {
+    int opcode = code[offset];
+    String name = NAMES[opcode];
+    switch (opcode) {
+      case PUSH_NUMBER:
+        return name + " " + numbers[code[offset + 1]];
+      case PUSH_STRING:
+      case LOAD:
+      case STORE:
+      case ASSIGN:
+      case STOREFUN:
+        return name + " " + strings[code[offset + 1]];
+      case PUSH_TRUE:
+        return name + " true";
+      case PUSH_FALSE:
+        return name + " false";
+      case PUSH_NIL:
+        return name + " null";
+      case PUSHFUN:
+        return name + " @" + functions[code[offset + 1]];
+      case JMP:
+      case JMPF:
+      case JMPF_KEEP:
+      case JMPT_KEEP:
+        return name + " @" + code[offset + 1];
+      case JNLT_LOCAL_CONST:
+        return name + " @" + code[offset + 1] + " " + code[offset + 2] + " " + numbers[code[offset + 3]];
+      case JNLT_LOCAL_LOCAL:
+        return name + " @" + code[offset + 1] + " " + code[offset + 2] + " " + code[offset + 3];
+      case LOAD_LOAD_ADD:
+        return name + " " + code[offset + 1] + " " + code[offset + 2];
+      case INC_LOCAL:
+        return name + " " + code[offset + 1] + " " + numbers[code[offset + 2]];
+      default:
+        return hasOperand(opcode) ? name + " " + code[offset + 1] : name;
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    for (int offset = 0; offset < length; offset += width(code[offset])) {
+      builder.append(String.format("%4d: %s%n", offset, instructionAt(offset)));
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,95 @@
+package com.example.code;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Loads a program written by {@link ProgramWriter}. The file is
+ * memory-mapped; the checksum is computed on the mapping and the code is
+ * read from it with one bulk transfer.
+ */
+public class ProgramLoader {
+  private ProgramLoader() {
+  }
+
+  public static Program load(FileChannel channel) throws IOException {
+    long size = channel.size();
+    if (size > Integer.MAX_VALUE)
+      throw new IOException("Program file too large: " + size + " bytes");
+    MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    return load(mapping);
+  }
+
+  /**
+   * Loads a program from the bytes between the position and the limit of
+   * {@code buffer}.
+   */
+  public static Program load(ByteBuffer buffer) throws IOException {
+    ByteBuffer data = buffer.slice();
+    if (data.remaining() < 12 || data.getInt(0) != ProgramWriter.MAGIC)
+      throw new IOException("Not a program file");
+    int version = data.getInt(4);
+    if (version != ProgramWriter.VERSION)
+      throw new IOException("Unsupported program file version " + version);
+
+    int end = data.limit() - 4;
+    ByteBuffer checked = data.duplicate();
+    checked.limit(end);
+    CRC32 crc = new CRC32();
+    crc.update(checked);
+    if ((int) crc.getValue() != data.getInt(end))
+      throw new IOException("Program file checksum mismatch");
+
+    data.limit(end);
+    data.position(8);
+    try {
+      int size = data.getInt();
+
+      int[] code = new int[count(data, 4)];
+      data.asIntBuffer().get(code);
+      data.position(data.position() + code.length * 4);
+
+      double[] numbers = new double[count(data, 8)];
+      data.asDoubleBuffer().get(numbers);
+      data.position(data.position() + numbers.length * 8);
+
+      String[] strings = new String[count(data, 4)];
+      for (int i = 0; i < strings.length; i++) {
+        byte[] bytes = new byte[count(data, 1)];
+        data.get(bytes);
+        strings[i] = new String(bytes, StandardCharsets.UTF_8);
+      }
+
+      int[] functions = new int[count(data, 4)];
+      data.asIntBuffer().get(functions);
+      data.position(data.position() + functions.length * 4);
+      if (data.hasRemaining())
+        throw new IOException("Unexpected data at the end of the program file");
+
+      Program program = new Program(code, size, numbers, strings, functions);
+      if (program.validate() != size)
+        throw new IOException("Program file has a wrong instruction count");
+      return program;
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated program file", e);
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Invalid program file: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Reads a count of entries of {@code width} bytes each and checks that
+   * they fit in what is left.
+   */
+  private static int count(ByteBuffer data, int width) throws IOException {
+    int count = data.getInt();
+    if (count < 0 || (long) count * width > data.remaining())
+      throw new IOException("Truncated program file");
+    return count;
+  }
+}
@@ -0,0 +1,81 @@
+package com.example.code;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Writes a {@link Program} in binary form, to be read back by
+ * {@link ProgramLoader} without scanning, parsing or generating code again.
+ * All values are big-endian:
+ *
+ * <pre>
+ * int     magic, "SMBC"
+ * int     format version
+ * int     number of instructions
+ * int     code length, then that many ints of code
+ * int     number count, then that many doubles
+ * int     string count, then for each string its UTF-8 length and bytes
+ * int     function count, then that many code offsets
+ * int     CRC-32 of everything before it
+ * </pre>
+ */
+public class ProgramWriter {
+  public static final int MAGIC = 0x534D4243;
+  public static final int VERSION = 1;
+
+  private ProgramWriter() {
+  }
+
+  /**
+   * Writes {@code program} to {@code out}, which is flushed but not closed.
+   * Programs with lazy functions cannot be written, since their code does
+   * not exist yet.
+   */
+  public static void write(Program program, OutputStream out) throws IOException {
+    int[] code = program.code();
+    for (int offset = 0; offset < program.length(); offset += Program.width(code[offset])) {
+      if (code[offset] == Program.PUSHLAZY)
+        throw new IllegalArgumentException("Cannot write a program with lazy functions");
+    }
+
+    CRC32 crc = new CRC32();
+    DataOutputStream data = new DataOutputStream(
+        new CheckedOutputStream(new BufferedOutputStream(out), crc));
+    data.writeInt(MAGIC);
+    data.writeInt(VERSION);
+    data.writeInt(program.size());
+
+    data.writeInt(program.length());
+    for (int i = 0; i < program.length(); i++) {
+      data.writeInt(code[i]);
+    }
+
+    data.writeInt(program.numberCount());
+    for (int i = 0; i < program.numberCount(); i++) {
+      data.writeDouble(program.number(i));
+    }
+
+    data.writeInt(program.stringCount());
+    for (int i = 0; i < program.stringCount(); i++) {
+      byte[] bytes = program.string(i).getBytes(StandardCharsets.UTF_8);
+      data.writeInt(bytes.length);
+      data.write(bytes);
+    }
+
+    data.writeInt(program.functionCount());
+    for (int i = 0; i < program.functionCount(); i++) {
+      data.writeInt(program.function(i));
+    }
+
+    // Written past the checked stream, so it is not part of its own sum
+    data.flush();
+    DataOutputStream trailer = new DataOutputStream(out);
+    trailer.writeInt((int) crc.getValue());
+    trailer.flush();
+  }
+}
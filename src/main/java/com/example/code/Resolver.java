@@ -0,0 +1,442 @@
+package com.example.code;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.example.parser.Expression;
+import com.example.parser.Statement;
+import com.example.scanner.Token;
+
+/**
+ * Works out where each variable lives before code is generated. Names
+ * declared at the top level get a global index, parameters and variables
+ * declared in blocks or function bodies get a slot in the frame of their
+ * function; the top-level code has a frame of its own for its blocks.
+ * {@link CodeGenerator} then accesses them by index instead of by name.
+ *
+ * A function has no frame slots of its enclosing functions. Variables that
+ * nested functions refer to, and the nested functions themselves, are kept
+ * by name in a scope the block or function creates at run time, where the
+ * nested functions find them while the enclosing call is running. Names
+ * found nowhere are looked up by name too.
+ */
+public class Resolver implements Expression.Visitor<Void>, Statement.Visitor<Void> {
+  // A name in a scope that is kept by name instead of in a slot
+  private static final int BY_NAME = -1;
+
+  private final Map<String, Integer> globals = new HashMap<>();
+  // Variable, Assign, Var and Function nodes mapped to where their name lives
+  private final Map<Object, Integer> localSlots = new IdentityHashMap<>();
+  private final Map<Object, Integer> globalSlots = new IdentityHashMap<>();
+  private final Map<Statement.Function, Integer> frameSizes = new IdentityHashMap<>();
+  // Var nodes and parameter tokens that nested functions refer to
+  private final Set<Object> captured = Collections.newSetFromMap(new IdentityHashMap<>());
+  // Blocks and functions that declare names kept by name
+  private final Set<Object> scoped = Collections.newSetFromMap(new IdentityHashMap<>());
+  // The names around lazy functions, for when their body is resolved
+  private final Map<Statement.Function, Frame> lazyEnclosing = new IdentityHashMap<>();
+  private int mainFrameSize = 0;
+  private Frame frame;
+  // Set during the first walk, which only finds the captured variables
+  private boolean capturing;
+  private final ArrayDeque<Expression> work = new ArrayDeque<>();
+
+  /**
+   * The scopes of the function being resolved and its slots in use.
+   */
+  private static class Frame {
+    final Frame enclosing;
+    final List<Map<String, Integer>> scopes = new ArrayList<>();
+    // The block or function of each scope
+    final List<Object> owners = new ArrayList<>();
+    // While capturing, what declares each name of the scopes
+    final List<Map<String, Object>> declarations = new ArrayList<>();
+    // While capturing, whether a lazy function, whose body is not known
+    // yet, may refer to any of the names
+    boolean lazyInside;
+    int next = 0;
+    int size = 0;
+
+    Frame(Frame enclosing) {
+      this.enclosing = enclosing;
+    }
+  }
+
+  public void resolve(List<Statement> statements) {
+    // Globals can be used by functions declared before them
+    for (Statement statement : statements) {
+      if (statement instanceof Statement.Var) {
+        declareGlobal(((Statement.Var) statement).name);
+      } else if (statement instanceof Statement.Function) {
+        declareGlobal(((Statement.Function) statement).name);
+      }
+    }
+
+    // Whether a variable gets a slot depends on the functions after it
+    for (boolean pass : new boolean[] { true, false }) {
+      capturing = pass;
+      frame = new Frame(null);
+      for (Statement statement : statements) {
+        resolve(statement);
+      }
+    }
+    mainFrameSize = frame.size;
+    frame = null;
+  }
+
+  /**
+   * Resolves the body of a lazy function once it has been parsed.
+   */
+  void resolveFunction(Statement.Function function) {
+    Frame enclosing = frame;
+    for (boolean pass : new boolean[] { true, false }) {
+      capturing = pass;
+      frame = lazyEnclosing.get(function);
+      resolveBody(function);
+    }
+    frame = enclosing;
+  }
+
+  private void resolveBody(Statement.Function function) {
+    Frame enclosing = frame;
+    frame = new Frame(enclosing);
+    beginScope(function);
+    // Parameter i is in slot i, even if a name is repeated
+    for (int i = 0; i < function.params.size(); i++) {
+      Token param = function.params.get(i);
+      if (capturing) {
+        frame.declarations.get(0).put(param.lexeme, param);
+      } else if (captured.contains(param)) {
+        declareByName(param);
+      } else {
+        frame.scopes.get(0).put(param.lexeme, i);
+      }
+    }
+    frame.next = frame.size = function.params.size();
+    for (Statement statement : function.getBody()) {
+      resolve(statement);
+    }
+    frameSizes.put(function, frame.size);
+    frame = enclosing;
+  }
+
+  /**
+   * Returns the frame slot of the variable a node reads or declares, or -1
+   * if it is not a local.
+   */
+  public int local(Object node) {
+    Integer slot = localSlots.get(node);
+    return slot == null ? -1 : slot;
+  }
+
+  /**
+   * Returns the global index of the variable a node reads or declares, or
+   * -1 if it is not a global.
+   */
+  public int global(Object node) {
+    Integer index = globalSlots.get(node);
+    return index == null ? -1 : index;
+  }
+
+  /**
+   * Tells whether a variable or parameter token is kept by name because a
+   * nested function refers to it.
+   */
+  public boolean isCaptured(Object declaration) {
+    return captured.contains(declaration);
+  }
+
+  /**
+   * Tells whether a block or function declares names kept by name, and so
+   * needs a scope at run time.
+   */
+  public boolean isScoped(Object node) {
+    return scoped.contains(node);
+  }
+
+  /**
+   * Returns how many slots a call of {@code function} needs; parameters
+   * come first, in order.
+   */
+  public int frameSize(Statement.Function function) {
+    Integer size = frameSizes.get(function);
+    if (size == null)
+      throw new IllegalStateException("Function " + function.name.lexeme + " is not resolved");
+    return size;
+  }
+
+  /**
+   * Returns how many slots the blocks of the top-level code need.
+   */
+  public int frameSize() {
+    return mainFrameSize;
+  }
+
+  private void declareGlobal(Token name) {
+    globals.putIfAbsent(name.lexeme, globals.size());
+  }
+
+  private void beginScope(Object owner) {
+    frame.scopes.add(new HashMap<>());
+    frame.owners.add(owner);
+    frame.declarations.add(new HashMap<>());
+  }
+
+  private void endScope() {
+    int last = frame.scopes.size() - 1;
+    Map<String, Integer> scope = frame.scopes.remove(last);
+    frame.owners.remove(last);
+    frame.declarations.remove(last);
+    // The slots of the scope are free again for its siblings
+    for (int slot : scope.values()) {
+      if (slot != BY_NAME) {
+        frame.next--;
+      }
+    }
+  }
+
+  private void declareByName(Token name) {
+    int last = frame.scopes.size() - 1;
+    frame.scopes.get(last).put(name.lexeme, BY_NAME);
+    scoped.add(frame.owners.get(last));
+  }
+
+  /**
+   * Declares a name in the innermost scope and returns its slot.
+   */
+  private int declare(Token name) {
+    Map<String, Integer> scope = frame.scopes.get(frame.scopes.size() - 1);
+    Integer slot = scope.get(name.lexeme);
+    if (slot == null || slot == BY_NAME) {
+      slot = frame.next++;
+      frame.size = Math.max(frame.size, frame.next);
+      scope.put(name.lexeme, slot);
+    }
+    return slot;
+  }
+
+  /**
+   * Declares the name a node declares; at the top level it is a global.
+   */
+  private void define(Object node, Token name) {
+    if (frame.scopes.isEmpty()) {
+      if (!capturing) {
+        globalSlots.put(node, globals.get(name.lexeme));
+      }
+    } else if (capturing) {
+      frame.declarations.get(frame.declarations.size() - 1).put(name.lexeme, node);
+      if (frame.lazyInside) {
+        captured.add(node);
+      }
+    } else if (node instanceof Statement.Function || captured.contains(node)) {
+      // Nested functions are stored by name, as STOREFUN does
+      declareByName(name);
+    } else {
+      localSlots.put(node, declare(name));
+    }
+  }
+
+  private void lookup(Object node, Token name) {
+    if (capturing) {
+      capture(name);
+      return;
+    }
+    for (int i = frame.scopes.size() - 1; i >= 0; i--) {
+      Integer slot = frame.scopes.get(i).get(name.lexeme);
+      if (slot != null) {
+        if (slot != BY_NAME) {
+          localSlots.put(node, slot);
+        }
+        return;
+      }
+    }
+    // A variable of an enclosing function is captured, so kept by name
+    for (Frame outer = frame.enclosing; outer != null; outer = outer.enclosing) {
+      for (Map<String, Integer> scope : outer.scopes) {
+        if (scope.containsKey(name.lexeme))
+          return;
+      }
+    }
+    Integer index = globals.get(name.lexeme);
+    if (index != null) {
+      globalSlots.put(node, index);
+    }
+  }
+
+  /**
+   * Marks the declaration of a name an enclosing function declares as
+   * captured.
+   */
+  private void capture(Token name) {
+    for (Frame current = frame; current != null; current = current.enclosing) {
+      for (int i = current.declarations.size() - 1; i >= 0; i--) {
+        Object declaration = current.declarations.get(i).get(name.lexeme);
+        if (declaration != null) {
+          if (current != frame) {
+            captured.add(declaration);
+          }
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Marks every name the enclosing functions can see as captured, since a
+   * lazy function may refer to any of them, and keeps them for resolving
+   * its body.
+   */
+  private void captureAll(Statement.Function lazy) {
+    Frame names = new Frame(null);
+    names.scopes.add(new HashMap<>());
+    for (Frame current = frame; current != null; current = current.enclosing) {
+      if (current.scopes.isEmpty())
+        continue;
+      current.lazyInside = true;
+      for (Map<String, Object> declarations : current.declarations) {
+        captured.addAll(declarations.values());
+        for (String name : declarations.keySet()) {
+          names.scopes.get(0).put(name, BY_NAME);
+        }
+      }
+    }
+    lazyEnclosing.put(lazy, names);
+  }
+
+  private void resolve(Statement statement) {
+    statement.accept(this);
+  }
+
+  /**
+   * Resolves an expression. As in {@link CodeGenerator}, the visitors push
+   * their operands onto {@link #work} instead of recursing.
+   */
+  private void resolve(Expression expression) {
+    work.push(expression);
+    while (!work.isEmpty()) {
+      work.pop().accept(this);
+    }
+  }
+
+  @Override
+  public Void visitBlockStmt(Statement.Block stmt) {
+    beginScope(stmt);
+    for (Statement statement : stmt.statements) {
+      resolve(statement);
+    }
+    endScope();
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Statement.Expression stmt) {
+    resolve(stmt.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Statement.Function stmt) {
+    // Declared first, so the function can call itself
+    define(stmt, stmt.name);
+    if (!stmt.isLazy()) {
+      resolveBody(stmt);
+    } else if (capturing) {
+      captureAll(stmt);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(Statement.If stmt) {
+    resolve(stmt.condition);
+    resolve(stmt.thenBranch);
+    if (stmt.elseBranch != null) {
+      resolve(stmt.elseBranch);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Statement.Return stmt) {
+    if (stmt.value != null) {
+      resolve(stmt.value);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Statement.Var stmt) {
+    // The initializer still sees an outer variable of the same name
+    if (stmt.initializer != null) {
+      resolve(stmt.initializer);
+    }
+    define(stmt, stmt.name);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Statement.While stmt) {
+    resolve(stmt.condition);
+    resolve(stmt.body);
+    return null;
+  }
+
+  @Override
+  public Void visitAssignExpression(Expression.Assign expr) {
+    lookup(expr, expr.name);
+    work.push(expr.value);
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpression(Expression.Binary expr) {
+    work.push(expr.right);
+    work.push(expr.left);
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpression(Expression.Call expr) {
+    work.push(expr.callee);
+    for (Expression argument : expr.arguments) {
+      work.push(argument);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpression(Expression.Grouping expr) {
+    work.push(expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpression(Expression.Literal expr) {
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpression(Expression.Logical expr) {
+    work.push(expr.right);
+    work.push(expr.left);
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpression(Expression.Unary expr) {
+    work.push(expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpression(Expression.Variable expr) {
+    lookup(expr, expr.name);
+    return null;
+  }
+}
@@ -0,0 +1,97 @@
+package com.example.code;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Replaces the sequences that loops compile to with superinstructions, so
+ * the machine dispatches once where it would dispatch three or four times.
+ * A loop such as {@code while (i < n) { s = s + i; i = i + 1; }} over
+ * locals becomes JNLT_LOCAL_LOCAL, LOAD_LOAD_ADD, STORE_LOCAL, INC_LOCAL
+ * and JMP.
+ *
+ * Like {@link PeepholeOptimizer} it works on code before linking, so no
+ * jump can target the middle of a replaced sequence, and it counts how
+ * often each superinstruction was selected.
+ */
+public class SuperinstructionSelector {
+  private final Map<Operation, Integer> selected = new EnumMap<>(Operation.class);
+
+  public List<Instruction> select(List<Instruction> code) {
+    List<Instruction> result = new ArrayList<>(code.size());
+    for (int i = 0; i < code.size();) {
+      Instruction fused = match(code, i);
+      if (fused != null) {
+        result.add(fused);
+        selected.merge(fused.operation, 1, Integer::sum);
+        i += sequenceLength(fused.operation);
+      } else {
+        result.add(code.get(i++));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the superinstruction for the sequence starting at
+   * {@code code[i]}, or null if there is none.
+   */
+  private static Instruction match(List<Instruction> code, int i) {
+    if (operation(code, i) != Operation.LOAD_LOCAL || i + 1 >= code.size())
+      return null;
+    Instruction first = code.get(i);
+    Instruction second = code.get(i + 1);
+    boolean constant = operation(code, i + 1) == Operation.PUSH
+        && second.operandType == OperandType.NUMBER;
+    boolean local = operation(code, i + 1) == Operation.LOAD_LOCAL;
+    if (!constant && !local)
+      return null;
+
+    // The number forms of LT and ADD are what TypeInference makes of them
+    Operation third = operation(code, i + 2);
+    if (third == Operation.LT_NUM) {
+      third = Operation.LT;
+    } else if (third == Operation.ADD_NUM) {
+      third = Operation.ADD;
+    }
+    if (third == Operation.LT && operation(code, i + 3) == Operation.JMPF) {
+      Operation jump = constant ? Operation.JNLT_LOCAL_CONST : Operation.JNLT_LOCAL_LOCAL;
+      return new Instruction(jump, code.get(i + 3).operand, first.operand, second.operand);
+    }
+    if (third == Operation.ADD) {
+      if (local)
+        return new Instruction(Operation.LOAD_LOAD_ADD, first.operand, second.operand);
+      if (operation(code, i + 3) == Operation.STORE_LOCAL
+          && Objects.equals(code.get(i + 3).operand, first.operand))
+        return new Instruction(Operation.INC_LOCAL, first.operand, second.operand);
+    }
+    return null;
+  }
+
+  private static Operation operation(List<Instruction> code, int i) {
+    return i < code.size() ? code.get(i).operation : null;
+  }
+
+  private static int sequenceLength(Operation superinstruction) {
+    return superinstruction == Operation.LOAD_LOAD_ADD ? 3 : 4;
+  }
+
+  /**
+   * Returns how often {@code superinstruction} was selected so far.
+   */
+  public int getSelected(Operation superinstruction) {
+    return selected.getOrDefault(superinstruction, 0);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder report = new StringBuilder();
+    for (Map.Entry<Operation, Integer> entry : selected.entrySet()) {
+      report.append(String.format("%-17s %6d selected%n", entry.getKey(), entry.getValue()));
+    }
+    return report.toString();
+  }
+}
@@ -0,0 +1,374 @@
+package com.example.code;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.example.parser.Expression;
+import com.example.parser.Statement;
+import com.example.scanner.Token;
+import com.example.scanner.TokenType;
+
+/**
+ * Finds the type of expressions where it is known at compile time, so
+ * {@link CodeGenerator} can emit operations that skip the checks of the
+ * generic ones. Arithmetic always yields a number, since the machine fails
+ * on anything else. A local variable is a number if every value ever
+ * stored in it is; parameters, globals and call results are unknown.
+ *
+ * Locals are those declared in blocks and function bodies. Nested
+ * functions see the locals of the functions around them, so their stores
+ * count too. The body of a lazy function is not known until it is called,
+ * so every local it could see is unknown.
+ */
+public class TypeInference implements Expression.Visitor<Void>, Statement.Visitor<Void> {
+  public enum Type {
+    NUMBER, UNKNOWN
+  }
+
+  /**
+   * A local variable. {@code type} is null until a value is stored.
+   */
+  private static class Binding {
+    Type type;
+  }
+
+  /**
+   * A value stored into a local, by its declaration or an assignment.
+   */
+  private static class Store {
+    final Binding binding;
+    final Expression value;
+
+    Store(Binding binding, Expression value) {
+      this.binding = binding;
+      this.value = value;
+    }
+  }
+
+  // Variable nodes mapped to the local they read
+  private final Map<Expression, Binding> reads = new IdentityHashMap<>();
+  private final List<Store> stores = new ArrayList<>();
+  // The scopes of the function being inferred, innermost last; empty at the
+  // top level, whose variables are globals
+  private List<Map<String, Binding>> scopes = new ArrayList<>();
+  // Set once a lazy function is declared in the function being inferred
+  private boolean lazyInside = false;
+  private final ArrayDeque<Expression> work = new ArrayDeque<>();
+  private final ArrayDeque<Expression> operands = new ArrayDeque<>();
+
+  public void infer(List<Statement> statements) {
+    for (Statement statement : statements) {
+      infer(statement);
+    }
+    solve();
+  }
+
+  /**
+   * Infers the body of a lazy function once it has been parsed.
+   */
+  void inferFunction(Statement.Function function) {
+    inferBody(function);
+    solve();
+  }
+
+  /**
+   * Returns the type of {@code expression}, or UNKNOWN if it may have
+   * values of different types.
+   */
+  public Type type(Expression expression) {
+    Type type = typeOf(expression);
+    return type == null ? Type.UNKNOWN : type;
+  }
+
+  public boolean isNumber(Expression expression) {
+    return type(expression) == Type.NUMBER;
+  }
+
+  /**
+   * Widens the types of locals until each covers every value stored in
+   * it. Types only ever go from null to a type to UNKNOWN, so this ends.
+   */
+  private void solve() {
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (Store store : stores) {
+        Type type = join(store.binding.type, typeOf(store.value));
+        if (type != store.binding.type) {
+          store.binding.type = type;
+          changed = true;
+        }
+      }
+    }
+    // Locals only stored from each other have no known values
+    for (Store store : stores) {
+      if (store.binding.type == null) {
+        store.binding.type = Type.UNKNOWN;
+      }
+    }
+    stores.clear();
+  }
+
+  private static Type join(Type a, Type b) {
+    if (a == null)
+      return b;
+    if (b == null || a == b)
+      return a;
+    return Type.UNKNOWN;
+  }
+
+  /**
+   * Joins the types of the values {@code expression} can have. Groupings,
+   * assignments and logical operators have the value of one of their
+   * operands, which are followed on {@link #operands}; null means no value
+   * is known yet.
+   */
+  private Type typeOf(Expression expression) {
+    Type type = null;
+    operands.push(expression);
+    while (!operands.isEmpty()) {
+      Expression operand = operands.pop();
+      if (operand instanceof Expression.Grouping) {
+        operands.push(((Expression.Grouping) operand).expression);
+      } else if (operand instanceof Expression.Assign) {
+        operands.push(((Expression.Assign) operand).value);
+      } else if (operand instanceof Expression.Logical) {
+        operands.push(((Expression.Logical) operand).left);
+        operands.push(((Expression.Logical) operand).right);
+      } else {
+        Type operandType = valueType(operand);
+        type = type == null ? operandType : join(type, operandType);
+      }
+    }
+    return type;
+  }
+
+  private Type valueType(Expression expression) {
+    if (expression instanceof Expression.Literal) {
+      Object value = ((Expression.Literal) expression).value;
+      return value instanceof Double ? Type.NUMBER : Type.UNKNOWN;
+    }
+    if (expression instanceof Expression.Binary) {
+      switch (((Expression.Binary) expression).operator.type) {
+        case PLUS:
+        case MINUS:
+        case STAR:
+        case SLASH:
+        case MODULO:
+          return Type.NUMBER;
+        default:
+          return Type.UNKNOWN;
+      }
+    }
+    if (expression instanceof Expression.Unary) {
+      return ((Expression.Unary) expression).operator.type == TokenType.MINUS
+          ? Type.NUMBER : Type.UNKNOWN;
+    }
+    if (expression instanceof Expression.Variable) {
+      Binding binding = reads.get(expression);
+      // A variable with no value known yet adds nothing
+      return binding == null ? Type.UNKNOWN : binding.type;
+    }
+    return Type.UNKNOWN;
+  }
+
+  private void inferBody(Statement.Function function) {
+    List<Map<String, Binding>> enclosing = scopes;
+    boolean enclosingLazyInside = lazyInside;
+    scopes = new ArrayList<>(enclosing);
+    lazyInside = false;
+    Map<String, Binding> params = new HashMap<>();
+    for (Token param : function.params) {
+      params.put(param.lexeme, unknown());
+    }
+    scopes.add(params);
+    for (Statement statement : function.getBody()) {
+      infer(statement);
+    }
+    scopes = enclosing;
+    lazyInside = enclosingLazyInside;
+  }
+
+  private static Binding unknown() {
+    Binding binding = new Binding();
+    binding.type = Type.UNKNOWN;
+    return binding;
+  }
+
+  /**
+   * Declares a local in the innermost scope. As in {@link Resolver}, a
+   * name declared again in the same scope is the same variable.
+   */
+  private Binding declare(Token name) {
+    Map<String, Binding> scope = scopes.get(scopes.size() - 1);
+    Binding binding = scope.computeIfAbsent(name.lexeme, lexeme -> new Binding());
+    if (lazyInside) {
+      binding.type = Type.UNKNOWN;
+    }
+    return binding;
+  }
+
+  private Binding lookup(Token name) {
+    for (int i = scopes.size() - 1; i >= 0; i--) {
+      Binding binding = scopes.get(i).get(name.lexeme);
+      if (binding != null)
+        return binding;
+    }
+    return null;
+  }
+
+  private void infer(Statement statement) {
+    statement.accept(this);
+  }
+
+  /**
+   * Visits an expression; as in {@link Resolver}, the visitors push their
+   * operands onto {@link #work} instead of recursing.
+   */
+  private void infer(Expression expression) {
+    work.push(expression);
+    while (!work.isEmpty()) {
+      work.pop().accept(this);
+    }
+  }
+
+  @Override
+  public Void visitBlockStmt(Statement.Block stmt) {
+    scopes.add(new HashMap<>());
+    for (Statement statement : stmt.statements) {
+      infer(statement);
+    }
+    scopes.remove(scopes.size() - 1);
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Statement.Expression stmt) {
+    infer(stmt.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Statement.Function stmt) {
+    if (!scopes.isEmpty()) {
+      declare(stmt.name).type = Type.UNKNOWN;
+    }
+    if (!stmt.isLazy()) {
+      inferBody(stmt);
+    } else if (!scopes.isEmpty()) {
+      // It may store anything into the locals around it
+      lazyInside = true;
+      for (Map<String, Binding> scope : scopes) {
+        for (Binding binding : scope.values()) {
+          binding.type = Type.UNKNOWN;
+        }
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(Statement.If stmt) {
+    infer(stmt.condition);
+    infer(stmt.thenBranch);
+    if (stmt.elseBranch != null) {
+      infer(stmt.elseBranch);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Statement.Return stmt) {
+    if (stmt.value != null) {
+      infer(stmt.value);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Statement.Var stmt) {
+    // The initializer still sees an outer variable of the same name
+    if (stmt.initializer != null) {
+      infer(stmt.initializer);
+    }
+    if (scopes.isEmpty())
+      return null;
+    Binding binding = declare(stmt.name);
+    if (stmt.initializer != null) {
+      stores.add(new Store(binding, stmt.initializer));
+    } else {
+      binding.type = Type.UNKNOWN;
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Statement.While stmt) {
+    infer(stmt.condition);
+    infer(stmt.body);
+    return null;
+  }
+
+  @Override
+  public Void visitAssignExpression(Expression.Assign expr) {
+    Binding binding = lookup(expr.name);
+    if (binding != null) {
+      stores.add(new Store(binding, expr.value));
+    }
+    work.push(expr.value);
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpression(Expression.Binary expr) {
+    work.push(expr.right);
+    work.push(expr.left);
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpression(Expression.Call expr) {
+    work.push(expr.callee);
+    for (Expression argument : expr.arguments) {
+      work.push(argument);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpression(Expression.Grouping expr) {
+    work.push(expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpression(Expression.Literal expr) {
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpression(Expression.Logical expr) {
+    work.push(expr.right);
+    work.push(expr.left);
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpression(Expression.Unary expr) {
+    work.push(expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpression(Expression.Variable expr) {
+    Binding binding = lookup(expr.name);
+    if (binding != null) {
+      reads.put(expr, binding);
+    }
+    return null;
+  }
+}
@@ -1,45 +1,159 @@
 package com.example.compiler;
 
+import java.io.Reader;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import com.example.code.CodeGenerator;
+import com.example.code.ConstantFolder;
+import com.example.code.Linker;
+import com.example.code.PeepholeOptimizer;
+import com.example.code.Program;
+import com.example.code.Resolver;
+import com.example.code.SuperinstructionSelector;
+import com.example.code.TypeInference;
+import com.example.parser.ParallelParser;
 import com.example.parser.Parser;
 import com.example.parser.Statement;
+import com.example.scanner.Diagnostics;
+import com.example.scanner.ParallelScanner;
 import com.example.scanner.Scanner;
 import com.example.stack.StackMachine;
-import com.example.scanner.Token;
-import com.example.scanner.TokenType;
+import com.example.scanner.TokenStream;
+import com.example.scanner.Utf8Scanner;
 import com.example.code.Instruction;
 
 public class Compiler {
+  // Sources of at least this many chars are scanned and parsed in parallel chunks
+  private static final int PARALLEL_SCAN_THRESHOLD = 4 << 20;
+  // Instructions a program may run before it is taken for an infinite loop
+  private static final long DEFAULT_MAX_ITERATIONS = 10_000_000L;
+
   private boolean debug = false;
+  private boolean lazyFunctions = false;
+  private long maxIterations = DEFAULT_MAX_ITERATIONS;
+  // Compiles the lazy functions of the last generated code
+  private CodeGenerator codeGenerator;
+  private PeepholeOptimizer optimizer = new PeepholeOptimizer();
+  private SuperinstructionSelector selector = new SuperinstructionSelector();
 
   public List<Instruction> generateCode(String source) {
-    // Ensure the source ends with a semicolon
-    if (!source.trim().endsWith(";")) {
-      source = source.trim() + ";";
-    }
+    return generateCode(source, lazyFunctions);
+  }
 
-    // Scan the source into tokens
-    Scanner scanner = new Scanner(source);
-    List<Token> tokens = scanner.scanTokens();
+  private List<Instruction> generateCode(String source, boolean lazy) {
+    TokenStream tokens = scan(source, null);
 
     // Parse tokens into an Abstract Syntax Tree
+    if (source.length() >= PARALLEL_SCAN_THRESHOLD) {
+      ParallelParser parser = new ParallelParser(tokens);
+      parser.setLazyFunctions(lazy);
+      return generateCode(parser.parse(ForkJoinPool.commonPool()));
+    }
     Parser parser = new Parser(tokens);
+    parser.setLazyFunctions(lazy);
+    return generateCode(parser.parse());
+  }
+
+  /**
+   * Scans and parses {@code source} without generating code and returns all
+   * errors found, instead of stopping at the first one. Assignments to a
+   * const are checked too.
+   */
+  public Diagnostics check(String source) {
+    Diagnostics diagnostics = new Diagnostics();
+    TokenStream tokens = scan(source, diagnostics);
+
+    Parser parser = new Parser(tokens);
+    parser.setDiagnostics(diagnostics);
     List<Statement> statements = parser.parse();
+    ConstantFolder constants = new ConstantFolder();
+    constants.setDiagnostics(diagnostics);
+    constants.fold(statements);
+    return diagnostics;
+  }
 
-    // Generate instructions
-    CodeGenerator codeGenerator = new CodeGenerator();
-    List<Instruction> instructions = codeGenerator.generateCode(statements);
+  /**
+   * Scans the source into a compact token stream, ending it with a semicolon.
+   */
+  private TokenStream scan(String source, Diagnostics diagnostics) {
+    if (source.length() >= PARALLEL_SCAN_THRESHOLD) {
+      ParallelScanner scanner = new ParallelScanner(source.toCharArray());
+      scanner.setImplicitSemicolon(true);
+      scanner.setDiagnostics(diagnostics);
+      return scanner.scanTokenStream(ForkJoinPool.commonPool());
+    }
+
+    Scanner scanner = new Scanner(source);
+    scanner.setImplicitSemicolon(true);
+    scanner.setDiagnostics(diagnostics);
+    return scanner.scanTokenStream();
+  }
+
+  /**
+   * Compiles UTF-8 encoded source bytes without decoding them to a string.
+   */
+  public List<Instruction> generateCode(byte[] source) {
+    Utf8Scanner scanner = new Utf8Scanner(source);
+    scanner.setImplicitSemicolon(true);
+    TokenStream tokens = scanner.scanTokenStream();
+
+    Parser parser = new Parser(tokens);
+    parser.setLazyFunctions(lazyFunctions);
+    return generateCode(parser.parse());
+  }
+
+  /**
+   * Compiles a source that is read incrementally from {@code reader}. The
+   * parser pulls tokens from the scanner as it goes, so neither the source
+   * nor its tokens have to be held in memory as a whole.
+   */
+  public List<Instruction> generateCode(Reader reader) {
+    Scanner scanner = new Scanner(reader);
+    scanner.setImplicitSemicolon(true);
+
+    Parser parser = new Parser(scanner);
+    return generateCode(parser.parse());
+  }
+
+  private List<Instruction> generateCode(List<Statement> statements) {
+    // Fold constants, infer types, resolve variables to slots, generate and
+    // optimize instructions and resolve their labels
+    ConstantFolder constants = new ConstantFolder();
+    constants.fold(statements);
+    TypeInference types = new TypeInference();
+    types.infer(statements);
+    Resolver resolver = new Resolver();
+    resolver.resolve(statements);
+    codeGenerator = new CodeGenerator();
+    codeGenerator.setConstantFolder(constants);
+    codeGenerator.setTypeInference(types);
+    codeGenerator.setResolver(resolver);
+    List<Instruction> instructions = optimize(codeGenerator.generateCode(statements));
+    instructions = Linker.link(instructions);
 
     // Print instructions if debug is enabled
     if (debug) {
       printInstructions(instructions);
+      if (optimizer != null) {
+        System.out.print(optimizer);
+      }
+      if (selector != null) {
+        System.out.print(selector);
+      }
     }
 
     return instructions;
   }
 
+  private List<Instruction> optimize(List<Instruction> instructions) {
+    if (optimizer != null) {
+      instructions = optimizer.optimize(instructions);
+    }
+    // After the optimizer, whose rules do not know superinstructions
+    return selector == null ? instructions : selector.select(instructions);
+  }
+
   public void printInstructions(List<Instruction> instructions) {
     System.out.println("Generated Instructions:");
     for (int i = 0; i < instructions.size(); i++) {
@@ -47,14 +161,89 @@ public class Compiler {
     }
   }
 
+  /**
+   * Compiles {@code source} into the compact form that
+   * {@link com.example.code.ProgramWriter} can save. Functions are always
+   * compiled up front, since a saved program has to be self-contained.
+   */
+  public Program compile(String source) {
+    return Program.encode(generateCode(source, false));
+  }
+
   public Object execute(String source) {
-    List<Instruction> instructions = generateCode(source);
+    return execute(generateCode(source));
+  }
+
+  public Object execute(byte[] source) {
+    return execute(generateCode(source));
+  }
+
+  public Object execute(Reader reader) {
+    return execute(generateCode(reader));
+  }
+
+  /**
+   * Executes a compiled program, such as one loaded by
+   * {@link com.example.code.ProgramLoader}.
+   */
+  public Object execute(Program program) {
+    StackMachine stackMachine = new StackMachine(program);
+    stackMachine.setDebug(debug);
+    stackMachine.setMaxIterations(maxIterations);
+    return stackMachine.execute();
+  }
+
+  private Object execute(List<Instruction> instructions) {
     StackMachine stackMachine = new StackMachine(instructions);
     stackMachine.setDebug(debug);
+    stackMachine.setMaxIterations(maxIterations);
+    CodeGenerator generator = codeGenerator;
+    stackMachine.setFunctionCompiler(function -> optimize(generator.compileFunction(function)));
     return stackMachine.execute();
   }
 
   public void setDebug(boolean debug) {
     this.debug = debug;
   }
+
+  /**
+   * Sets how many instructions an executed program may run before it is
+   * stopped as a possible infinite loop.
+   */
+  public void setMaxIterations(long maxIterations) {
+    this.maxIterations = maxIterations;
+  }
+
+  /**
+   * Sets the optimizer run over the generated code, or null for none. Its
+   * counts cover everything this compiler compiled with it.
+   */
+  public void setPeepholeOptimizer(PeepholeOptimizer optimizer) {
+    this.optimizer = optimizer;
+  }
+
+  public PeepholeOptimizer getPeepholeOptimizer() {
+    return optimizer;
+  }
+
+  /**
+   * Sets what selects superinstructions for the generated code, or null
+   * for none.
+   */
+  public void setSuperinstructionSelector(SuperinstructionSelector selector) {
+    this.selector = selector;
+  }
+
+  public SuperinstructionSelector getSuperinstructionSelector() {
+    return selector;
+  }
+
+  /**
+   * When enabled, function bodies are parsed and compiled on their first
+   * call instead of up front. Does not apply to sources read from a
+   * {@link Reader}, which cannot be revisited.
+   */
+  public void setLazyFunctions(boolean lazyFunctions) {
+    this.lazyFunctions = lazyFunctions;
+  }
 }
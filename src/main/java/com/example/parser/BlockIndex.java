@@ -0,0 +1,86 @@
+package com.example.parser;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.example.scanner.TokenEdit;
+
+/**
+ * The token ranges of the blocks of one parse, from the index of their '{'
+ * to the index after their '}'. When reparsing after an edit, blocks whose
+ * tokens were not touched are handed out again instead of being reparsed.
+ */
+class BlockIndex {
+  static class Entry {
+    final int end;
+    final Statement.Block block;
+
+    Entry(int end, Statement.Block block) {
+      this.end = end;
+      this.block = block;
+    }
+  }
+
+  final TreeMap<Integer, Entry> blocks = new TreeMap<>();
+  // The previous parse and how its tokens changed, if this is a reparse
+  private final BlockIndex previous;
+  private final int editStart;
+  private final int insertedEnd;
+  private final int delta;
+  // Where the block returned by the last successful reuse ends
+  int reusedEnd;
+
+  BlockIndex() {
+    this(null, null);
+  }
+
+  BlockIndex(BlockIndex previous, TokenEdit edit) {
+    this.previous = previous;
+    this.editStart = edit == null ? 0 : edit.start;
+    this.insertedEnd = edit == null ? 0 : edit.start + edit.inserted;
+    this.delta = edit == null ? 0 : edit.inserted - edit.removed;
+  }
+
+  void record(int start, int end, Statement.Block block) {
+    blocks.put(start, new Entry(end, block));
+  }
+
+  /**
+   * Returns the block of the previous parse that starts at the new token
+   * index {@code start}, if none of its tokens changed, and sets
+   * {@link #reusedEnd}. The blocks nested in it are recorded again as well.
+   */
+  Statement.Block reuse(int start) {
+    if (previous == null)
+      return null;
+
+    int oldStart;
+    if (start < editStart) {
+      oldStart = start;
+    } else if (start >= insertedEnd) {
+      oldStart = start - delta;
+    } else {
+      return null;
+    }
+
+    Entry entry = previous.blocks.get(oldStart);
+    if (entry == null || (oldStart < editStart && entry.end > editStart))
+      return null;
+
+    int shift = start - oldStart;
+    copy(previous, oldStart, entry.end, shift);
+    reusedEnd = entry.end + shift;
+    return entry.block;
+  }
+
+  /**
+   * Records the blocks of {@code from} that start in {@code [start, end)},
+   * moved by {@code shift} tokens.
+   */
+  void copy(BlockIndex from, int start, int end, int shift) {
+    for (Map.Entry<Integer, Entry> block : from.blocks.subMap(start, end).entrySet()) {
+      Entry entry = block.getValue();
+      blocks.put(block.getKey() + shift, shift == 0 ? entry : new Entry(entry.end + shift, entry.block));
+    }
+  }
+}
@@ -0,0 +1,160 @@
+package com.example.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.example.scanner.TokenEdit;
+import com.example.scanner.TokenStream;
+
+/**
+ * Keeps the statements of a token stream up to date across edits. It
+ * remembers the token range of every top-level statement and every block.
+ * After an edit, statements and blocks whose tokens did not change are
+ * reused as they are, and only the rest is parsed again. The edit is usually
+ * the one {@link com.example.scanner.IncrementalScanner} reports for the new
+ * stream.
+ *
+ * Reused statements keep their tokens, so their line numbers still refer to
+ * the text they were parsed from.
+ */
+public class IncrementalParser {
+  private List<Statement> statements = new ArrayList<>();
+  private int[] starts = new int[0];
+  private int[] ends = new int[0];
+  private BlockIndex blocks = new BlockIndex();
+  private int reused = 0;
+
+  public List<Statement> parse(TokenStream tokens) {
+    Parser parser = new Parser(tokens, 0, tokens.size() - 1);
+    BlockIndex index = new BlockIndex();
+    parser.setBlockIndex(index);
+
+    Ranges ranges = new Ranges(statements.size());
+    parseFrom(parser, ranges);
+    update(ranges, index, 0);
+    return statements;
+  }
+
+  /**
+   * Returns the statements of {@code tokens}, which differ from the tokens of
+   * the last parse as described by {@code edit}.
+   */
+  public List<Statement> reparse(TokenStream tokens, TokenEdit edit) {
+    int editStart = edit.start;
+    int removedEnd = edit.start + edit.removed;
+    int delta = edit.inserted - edit.removed;
+    int count = statements.size();
+
+    // A statement can depend on the token after it (an 'else', say), so it
+    // is only kept if that token did not change either.
+    int first = 0;
+    while (first < count && ends[first] < editStart) {
+      first++;
+    }
+
+    Ranges ranges = new Ranges(count);
+    for (int i = 0; i < first; i++) {
+      ranges.add(statements.get(i), starts[i], ends[i]);
+    }
+    int position = first > 0 ? ends[first - 1] : 0;
+
+    BlockIndex index = new BlockIndex(blocks, edit);
+    index.copy(blocks, 0, position, 0);
+
+    Parser parser = new Parser(tokens, position, tokens.size() - 1);
+    parser.setBlockIndex(index);
+
+    // Parse until a statement ends where an old one behind the edit starts;
+    // from there on nothing changed.
+    int old = first;
+    while (!parser.isAtEnd()) {
+      position = parser.position();
+      while (old < count && (starts[old] < removedEnd || starts[old] + delta < position)) {
+        old++;
+      }
+      if (old < count && starts[old] + delta == position)
+        break;
+
+      Statement statement = parser.nextDeclaration();
+      ranges.add(statement, position, parser.position());
+    }
+
+    int resumed = ranges.size;
+    if (!parser.isAtEnd()) {
+      for (int i = old; i < count; i++) {
+        ranges.add(statements.get(i), starts[i] + delta, ends[i] + delta);
+      }
+      index.copy(blocks, starts[old], Integer.MAX_VALUE, delta);
+    }
+
+    update(ranges, index, first + ranges.size - resumed);
+    return statements;
+  }
+
+  private void parseFrom(Parser parser, Ranges ranges) {
+    while (!parser.isAtEnd()) {
+      int start = parser.position();
+      Statement statement = parser.nextDeclaration();
+      ranges.add(statement, start, parser.position());
+    }
+  }
+
+  private void update(Ranges ranges, BlockIndex index, int reused) {
+    statements = ranges.statements;
+    starts = Arrays.copyOf(ranges.starts, ranges.size);
+    ends = Arrays.copyOf(ranges.ends, ranges.size);
+    blocks = index;
+    this.reused = reused;
+  }
+
+  public List<Statement> getStatements() {
+    return statements;
+  }
+
+  /**
+   * Returns the index of the first token of the {@code index}th statement.
+   */
+  public int start(int index) {
+    return starts[index];
+  }
+
+  /**
+   * Returns the index after the last token of the {@code index}th statement.
+   */
+  public int end(int index) {
+    return ends[index];
+  }
+
+  /**
+   * Returns how many top-level statements the last parse took over from the
+   * one before.
+   */
+  public int getReusedCount() {
+    return reused;
+  }
+
+  private static class Ranges {
+    final List<Statement> statements;
+    int[] starts;
+    int[] ends;
+    int size = 0;
+
+    Ranges(int capacity) {
+      statements = new ArrayList<>(capacity);
+      starts = new int[Math.max(capacity, 16)];
+      ends = new int[Math.max(capacity, 16)];
+    }
+
+    void add(Statement statement, int start, int end) {
+      if (size == starts.length) {
+        starts = Arrays.copyOf(starts, size * 2);
+        ends = Arrays.copyOf(ends, size * 2);
+      }
+      statements.add(statement);
+      starts[size] = start;
+      ends[size] = end;
+      size++;
+    }
+  }
+}
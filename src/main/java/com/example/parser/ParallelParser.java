@@ -0,0 +1,142 @@
+package com.example.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import com.example.scanner.Diagnostics;
+import com.example.scanner.TokenStream;
+
+/**
+ * Parses a token stream in chunks on a {@link ForkJoinPool}. A brace-matching
+ * pre-pass finds the {@code function} keywords at the top level; a valid
+ * program can only have a declaration start there, so the stream is cut in
+ * front of them and every chunk is parsed on its own. The statements are
+ * joined in source order.
+ *
+ * If any chunk has an error, the whole stream is parsed again sequentially,
+ * so errors are reported exactly as {@link Parser#parse()} would.
+ */
+public class ParallelParser {
+  private static final int DEFAULT_CHUNK_TOKENS = 1 << 14;
+
+  private final TokenStream tokens;
+  private final int chunkTokens;
+  private Diagnostics diagnostics;
+  private boolean lazyFunctions = false;
+
+  public ParallelParser(TokenStream tokens, int chunkTokens) {
+    this.tokens = tokens;
+    this.chunkTokens = chunkTokens;
+  }
+
+  public ParallelParser(TokenStream tokens) {
+    this(tokens, DEFAULT_CHUNK_TOKENS);
+  }
+
+  /**
+   * Used by the sequential parse that reports errors; see
+   * {@link Parser#setDiagnostics}.
+   */
+  public void setDiagnostics(Diagnostics diagnostics) {
+    this.diagnostics = diagnostics;
+  }
+
+  /**
+   * See {@link Parser#setLazyFunctions}.
+   */
+  public void setLazyFunctions(boolean lazyFunctions) {
+    this.lazyFunctions = lazyFunctions;
+  }
+
+  public List<Statement> parse(ForkJoinPool pool) {
+    int[] cuts = split();
+    if (cuts == null || cuts.length == 2)
+      return parseSequentially();
+
+    List<ForkJoinTask<List<Statement>>> tasks = new ArrayList<>(cuts.length - 1);
+    for (int i = 0; i + 1 < cuts.length; i++) {
+      int from = cuts[i];
+      int to = cuts[i + 1];
+      tasks.add(pool.submit(() -> parseChunk(from, to)));
+    }
+
+    List<Statement> statements = new ArrayList<>();
+    boolean failed = false;
+    for (ForkJoinTask<List<Statement>> task : tasks) {
+      List<Statement> chunk = task.join();
+      if (chunk == null) {
+        failed = true;
+      } else if (!failed) {
+        statements.addAll(chunk);
+      }
+    }
+    return failed ? parseSequentially() : statements;
+  }
+
+  /**
+   * Returns null if the chunk has an error.
+   */
+  private List<Statement> parseChunk(int from, int to) {
+    Parser parser = new Parser(tokens, from, to);
+    parser.setLazyFunctions(lazyFunctions);
+    Diagnostics errors = new Diagnostics();
+    parser.setDiagnostics(errors);
+    List<Statement> statements = parser.parse();
+    return errors.hasErrors() ? null : statements;
+  }
+
+  private List<Statement> parseSequentially() {
+    Parser parser = new Parser(tokens);
+    parser.setLazyFunctions(lazyFunctions);
+    parser.setDiagnostics(diagnostics);
+    return parser.parse();
+  }
+
+  /**
+   * Returns the token indices the chunks start at, followed by the index of
+   * the EOF token, or null if the braces do not match. Cuts are made in front
+   * of top-level {@code function} keywords, roughly every
+   * {@code chunkTokens} tokens.
+   */
+  private int[] split() {
+    int end = tokens.size() - 1;
+    int[] cuts = new int[16];
+    int count = 0;
+    cuts[count++] = 0;
+    int depth = 0;
+
+    for (int i = 0; i < end; i++) {
+      switch (tokens.type(i)) {
+        case LEFT_BRACE:
+          depth++;
+          break;
+        case RIGHT_BRACE:
+          if (--depth < 0)
+            return null;
+          break;
+        case FUNCTION:
+          if (depth == 0 && i - cuts[count - 1] >= chunkTokens) {
+            if (count + 1 == cuts.length)
+              cuts = Arrays.copyOf(cuts, count * 2);
+            cuts[count++] = i;
+          }
+          break;
+        case IDENTIFIER:
+          // Intern every name up front; the chunk parsers then only look
+          // names up, which is safe to do concurrently.
+          tokens.symbol(i);
+          break;
+        default:
+          break;
+      }
+    }
+    if (depth != 0)
+      return null;
+
+    cuts[count++] = end;
+    return Arrays.copyOf(cuts, count);
+  }
+}
@@ -4,4 +4,8 @@ public class ParseError extends RuntimeException {
   public ParseError(String message) {
     super(message);
   }
+
+  ParseError(String message, boolean writableStackTrace) {
+    super(message, null, false, writableStackTrace);
+  }
 }
@@ -3,25 +3,95 @@ package com.example.parser;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.example.scanner.Diagnostics;
 import com.example.scanner.Token;
+import com.example.scanner.TokenSource;
+import com.example.scanner.TokenStream;
 import com.example.scanner.TokenType;
 
 public class Parser {
-  private final List<Token> tokens;
+  private final TokenCursor tokens;
+  // Only set when parsing a token stream, which lazy functions point into
+  private final TokenStream stream;
   private int current = 0;
+  private boolean lazyFunctions = false;
+  private BlockIndex blocks;
+  private Diagnostics diagnostics;
 
   public Parser(List<Token> tokens) {
-    this.tokens = tokens;
+    this.tokens = TokenCursor.of(tokens);
+    this.stream = null;
+  }
+
+  public Parser(TokenStream tokens) {
+    this.tokens = TokenCursor.of(tokens);
+    this.stream = tokens;
+  }
+
+  public Parser(TokenSource tokens) {
+    this.tokens = TokenCursor.of(tokens);
+    this.stream = null;
+  }
+
+  /**
+   * Parses only the tokens {@code [from, to)} of the stream.
+   */
+  Parser(TokenStream tokens, int from, int to) {
+    this.tokens = TokenCursor.of(tokens, to);
+    this.stream = tokens;
+    this.current = from;
+  }
+
+  /**
+   * When enabled, function bodies are only matched for braces and their
+   * token range recorded; see {@link Statement.Function#getBody()}. Needs a
+   * parser over a {@link TokenStream}.
+   */
+  public void setLazyFunctions(boolean lazyFunctions) {
+    if (lazyFunctions && stream == null) {
+      throw new IllegalStateException("Lazy function bodies need a TokenStream");
+    }
+    this.lazyFunctions = lazyFunctions;
+  }
+
+  /**
+   * Makes the parser record errors in {@code diagnostics}, skip to the next
+   * statement and go on parsing, so all errors of a source are found in one
+   * pass. Statements with errors are left out of the result.
+   */
+  public void setDiagnostics(Diagnostics diagnostics) {
+    this.diagnostics = diagnostics;
   }
 
   public List<Statement> parse() {
     List<Statement> statements = new ArrayList<>();
     while (!isAtEnd()) {
-      statements.add(declaration());
+      Statement statement = declaration();
+      if (statement != null)
+        statements.add(statement);
     }
     return statements;
   }
 
+  /**
+   * Makes the parser record the token range of every block it parses, and
+   * reuse blocks from {@code blocks} where possible.
+   */
+  void setBlockIndex(BlockIndex blocks) {
+    this.blocks = blocks;
+  }
+
+  /**
+   * Returns the index of the next token to parse.
+   */
+  int position() {
+    return current;
+  }
+
+  Statement nextDeclaration() {
+    return declaration();
+  }
+
   private Statement declaration() {
     try {
       if (match(TokenType.FUNCTION))
@@ -34,12 +104,14 @@ public class Parser {
       return statement();
     } catch (ParseError error) {
       synchronize();
+      if (diagnostics != null)
+        return null;
       throw error;
     }
   }
 
   private Statement function() {
-    Token name = consume(TokenType.IDENTIFIER, "Expect function name.");
+    Token name = consumeToken(TokenType.IDENTIFIER, "Expect function name.");
     consume(TokenType.LEFT_PAREN, "Expect '(' after function name.");
 
     List<Token> parameters = new ArrayList<>();
@@ -48,18 +120,39 @@ public class Parser {
         if (parameters.size() >= 255) {
           throw error(peek(), "Can't have more than 255 parameters.");
         }
-        parameters.add(consume(TokenType.IDENTIFIER, "Expect parameter name."));
+        parameters.add(consumeToken(TokenType.IDENTIFIER, "Expect parameter name."));
       } while (match(TokenType.COMMA));
     }
     consume(TokenType.RIGHT_PAREN, "Expect ')' after parameters.");
 
     consume(TokenType.LEFT_BRACE, "Expect '{' before function body.");
+    if (lazyFunctions) {
+      int bodyStart = current;
+      skipBlock();
+      return new Statement.Function(name, parameters, stream, bodyStart, current - 1);
+    }
     List<Statement> body = block();
     return new Statement.Function(name, parameters, body);
   }
 
+  /**
+   * Moves past the '}' matching an already consumed '{'.
+   */
+  private void skipBlock() {
+    int depth = 1;
+    while (!isAtEnd()) {
+      TokenType type = tokens.type(current++);
+      if (type == TokenType.LEFT_BRACE) {
+        depth++;
+      } else if (type == TokenType.RIGHT_BRACE && --depth == 0) {
+        return;
+      }
+    }
+    throw error(peek(), "Expect '}' after block.");
+  }
+
   private Statement varDeclaration(boolean isConst) {
-    Token name = consume(TokenType.IDENTIFIER, "Expect variable name.");
+    Token name = consumeToken(TokenType.IDENTIFIER, "Expect variable name.");
 
     Expression initializer = null;
     if (match(TokenType.EQUAL)) {
@@ -82,7 +175,7 @@ public class Parser {
     if (match(TokenType.RETURN))
       return returnStatement();
     if (match(TokenType.LEFT_BRACE))
-      return new Statement.Block(block());
+      return blockStatement();
 
     return expressionStatement();
   }
@@ -162,11 +255,28 @@ public class Parser {
     return new Statement.Return(keyword, value);
   }
 
+  private Statement blockStatement() {
+    int start = current - 1;
+    if (blocks == null)
+      return new Statement.Block(block());
+
+    Statement.Block reused = blocks.reuse(start);
+    if (reused != null) {
+      current = blocks.reusedEnd;
+      return reused;
+    }
+    Statement.Block block = new Statement.Block(block());
+    blocks.record(start, current, block);
+    return block;
+  }
+
   private List<Statement> block() {
     List<Statement> statements = new ArrayList<>();
 
     while (!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
-      statements.add(declaration());
+      Statement statement = declaration();
+      if (statement != null)
+        statements.add(statement);
     }
 
     consume(TokenType.RIGHT_BRACE, "Expect '}' after block.");
@@ -179,206 +289,273 @@ public class Parser {
     return new Statement.Expression(expr);
   }
 
-  private Expression expression() {
-    return assignment();
-  }
-
-  private Expression assignment() {
-    Expression expr = logicalOr();
-
-    if (match(TokenType.EQUAL)) {
-      Token equals = previous();
-      Expression value = assignment();
-
-      if (expr instanceof Expression.Variable) {
-        Token name = ((Expression.Variable) expr).name;
-        return new Expression.Assign(name, value);
-      }
-
-      throw error(equals, "Invalid assignment target.");
-    }
-
-    return expr;
-  }
-
-  private Expression logicalOr() {
-    Expression expr = logicalAnd();
-
-    while (match(TokenType.OR)) {
-      Token operator = previous();
-      Expression right = logicalAnd();
-      expr = new Expression.Logical(expr, operator, right);
-    }
-
-    return expr;
-  }
-
-  private Expression logicalAnd() {
-    Expression expr = equality();
-
-    while (match(TokenType.AND)) {
-      Token operator = previous();
-      Expression right = equality();
-      expr = new Expression.Logical(expr, operator, right);
-    }
-
-    return expr;
-  }
-
-  private Expression equality() {
-    Expression expr = comparison();
-
-    while (match(TokenType.BANG_EQUAL, TokenType.EQUAL_EQUAL)) {
-      Token operator = previous();
-      Expression right = comparison();
-      expr = new Expression.Binary(expr, operator, right);
-    }
-
-    return expr;
-  }
-
-  private Expression comparison() {
-    Expression expr = term();
-
-    while (match(TokenType.GREATER, TokenType.GREATER_EQUAL,
-        TokenType.LESS, TokenType.LESS_EQUAL)) {
-      Token operator = previous();
-      Expression right = term();
-      expr = new Expression.Binary(expr, operator, right);
-    }
-
-    return expr;
-  }
-
-  private Expression term() {
-    Expression expr = factor();
-
-    while (match(TokenType.MINUS, TokenType.PLUS)) {
-      Token operator = previous();
-      Expression right = factor();
-      expr = new Expression.Binary(expr, operator, right);
-    }
-
-    return expr;
-  }
-
-  private Expression factor() {
-    Expression expr = unary();
-    while (match(TokenType.SLASH, TokenType.STAR, TokenType.MODULO)) {
-      Token operator = previous();
-      Expression right = unary();
-      expr = new Expression.Binary(expr, operator, right);
-    }
-
-    return expr;
-  }
-
-  private Expression unary() {
-    if (match(TokenType.BANG, TokenType.MINUS)) {
-      Token operator = previous();
-      Expression right = unary();
-      return new Expression.Unary(operator, right);
+  // Binding powers of the infix operators, lowest first
+  private static final int NONE = 0;
+  private static final int ASSIGNMENT = 1;
+  private static final int OR = 2;
+  private static final int AND = 3;
+  private static final int EQUALITY = 4;
+  private static final int COMPARISON = 5;
+  private static final int TERM = 6;
+  private static final int FACTOR = 7;
+  private static final int UNARY = 8;
+  private static final int CALL = 9;
+
+  // Prefix rules
+  private static final int LITERAL = 1;
+  private static final int VARIABLE = 2;
+  private static final int GROUPING = 3;
+  private static final int NEGATION = 4;
+
+  // Infix rules
+  private static final int BINARY = 5;
+  private static final int LOGICAL = 6;
+  private static final int ASSIGN = 7;
+  private static final int INVOKE = 8;
+
+  // Parse rules and precedences indexed by TokenType.ordinal()
+  private static final int[] PREFIX = new int[TokenType.values().length];
+  private static final int[] INFIX = new int[TokenType.values().length];
+  private static final int[] PRECEDENCE = new int[TokenType.values().length];
+
+  static {
+    prefix(TokenType.FALSE, LITERAL);
+    prefix(TokenType.TRUE, LITERAL);
+    prefix(TokenType.NULL, LITERAL);
+    prefix(TokenType.NUMBER, LITERAL);
+    prefix(TokenType.STRING, LITERAL);
+    prefix(TokenType.IDENTIFIER, VARIABLE);
+    prefix(TokenType.LEFT_PAREN, GROUPING);
+    prefix(TokenType.BANG, NEGATION);
+    prefix(TokenType.MINUS, NEGATION);
+
+    infix(TokenType.EQUAL, ASSIGNMENT, ASSIGN);
+    infix(TokenType.OR, OR, LOGICAL);
+    infix(TokenType.AND, AND, LOGICAL);
+    infix(TokenType.BANG_EQUAL, EQUALITY, BINARY);
+    infix(TokenType.EQUAL_EQUAL, EQUALITY, BINARY);
+    infix(TokenType.GREATER, COMPARISON, BINARY);
+    infix(TokenType.GREATER_EQUAL, COMPARISON, BINARY);
+    infix(TokenType.LESS, COMPARISON, BINARY);
+    infix(TokenType.LESS_EQUAL, COMPARISON, BINARY);
+    infix(TokenType.MINUS, TERM, BINARY);
+    infix(TokenType.PLUS, TERM, BINARY);
+    infix(TokenType.SLASH, FACTOR, BINARY);
+    infix(TokenType.STAR, FACTOR, BINARY);
+    infix(TokenType.MODULO, FACTOR, BINARY);
+    infix(TokenType.LEFT_PAREN, CALL, INVOKE);
+  }
+
+  private static void prefix(TokenType type, int rule) {
+    PREFIX[type.ordinal()] = rule;
+  }
+
+  private static void infix(TokenType type, int precedence, int rule) {
+    INFIX[type.ordinal()] = rule;
+    PRECEDENCE[type.ordinal()] = precedence;
+  }
+
+  /**
+   * An operator whose operand is still being parsed, together with the
+   * precedence to go back to once it is complete.
+   */
+  private static class Pending {
+    final int rule;
+    final int precedence;
+    final Token operator;
+    final Expression left;
+    final List<Expression> arguments;
+
+    Pending(int rule, int precedence, Token operator, Expression left, List<Expression> arguments) {
+      this.rule = rule;
+      this.precedence = precedence;
+      this.operator = operator;
+      this.left = left;
+      this.arguments = arguments;
     }
-
-    return call();
   }
 
-  private Expression call() {
-    Expression expr = primary();
-
+  private Expression expression() {
+    return parsePrecedence(ASSIGNMENT);
+  }
+
+  /**
+   * Parses an expression whose operators bind at least as tightly as
+   * {@code precedence}. Each token is dispatched through the rule tables, so
+   * a plain operand takes a single lookup.
+   *
+   * Operators that still wait for an operand are kept on an explicit stack
+   * rather than in nested calls, so arbitrarily deep expressions do not
+   * overflow the Java stack. Statements still nest through recursion, so
+   * the depth of blocks and ifs is bounded by the Java stack.
+   */
+  private Expression parsePrecedence(int precedence) {
+    ArrayList<Pending> pending = new ArrayList<>();
+    Expression expr;
+
+    operand:
     while (true) {
-      if (match(TokenType.LEFT_PAREN)) {
-        expr = finishCall(expr);
-      } else {
-        break;
+      switch (PREFIX[tokens.type(current).ordinal()]) {
+        case LITERAL:
+          current++;
+          expr = literal();
+          break;
+        case VARIABLE:
+          current++;
+          expr = new Expression.Variable(previous());
+          break;
+        case GROUPING:
+          current++;
+          pending.add(new Pending(GROUPING, precedence, null, null, null));
+          precedence = ASSIGNMENT;
+          continue operand;
+        case NEGATION:
+          current++;
+          pending.add(new Pending(NEGATION, precedence, previous(), null, null));
+          precedence = UNARY;
+          continue operand;
+        default:
+          throw error(peek(), "Expect expression.");
       }
-    }
 
-    return expr;
-  }
+      while (true) {
+        // Tokens that are not infix operators have precedence NONE and end the operand
+        int next = PRECEDENCE[tokens.type(current).ordinal()];
+        if (next >= precedence) {
+          int rule = INFIX[tokens.type(current).ordinal()];
+          current++;
+          if (rule == INVOKE) {
+            if (match(TokenType.RIGHT_PAREN)) {
+              expr = new Expression.Call(expr, previous(), new ArrayList<>());
+              continue;
+            }
+            pending.add(new Pending(INVOKE, precedence, null, expr, new ArrayList<>()));
+            precedence = ASSIGNMENT;
+          } else if (rule == ASSIGN) {
+            // Right-associative: a = b = c assigns c to b first
+            pending.add(new Pending(ASSIGN, precedence, previous(), expr, null));
+            precedence = ASSIGNMENT;
+          } else {
+            pending.add(new Pending(rule, precedence, previous(), expr, null));
+            precedence = next + 1;
+          }
+          continue operand;
+        }
 
-  private Expression finishCall(Expression callee) {
-    List<Expression> arguments = new ArrayList<>();
-    if (!check(TokenType.RIGHT_PAREN)) {
-      do {
-        if (arguments.size() >= 255) {
-          throw error(peek(), "Can't have more than 255 arguments.");
+        if (pending.isEmpty())
+          return expr;
+
+        Pending operator = pending.remove(pending.size() - 1);
+        precedence = operator.precedence;
+        switch (operator.rule) {
+          case GROUPING:
+            consume(TokenType.RIGHT_PAREN, "Expect ')' after expression.");
+            expr = new Expression.Grouping(expr);
+            break;
+          case NEGATION:
+            expr = new Expression.Unary(operator.operator, expr);
+            break;
+          case BINARY:
+            expr = new Expression.Binary(operator.left, operator.operator, expr);
+            break;
+          case LOGICAL:
+            expr = new Expression.Logical(operator.left, operator.operator, expr);
+            break;
+          case ASSIGN:
+            expr = assignment(operator.left, operator.operator, expr);
+            break;
+          case INVOKE:
+            operator.arguments.add(expr);
+            if (match(TokenType.COMMA)) {
+              if (operator.arguments.size() >= 255) {
+                throw error(peek(), "Can't have more than 255 arguments.");
+              }
+              pending.add(operator);
+              precedence = ASSIGNMENT;
+              continue operand;
+            }
+            Token paren = consumeToken(TokenType.RIGHT_PAREN, "Expect ')' after arguments.");
+            expr = new Expression.Call(operator.left, paren, operator.arguments);
+            break;
         }
-        arguments.add(expression());
-      } while (match(TokenType.COMMA));
+      }
     }
-
-    Token paren = consume(TokenType.RIGHT_PAREN, "Expect ')' after arguments.");
-    return new Expression.Call(callee, paren, arguments);
   }
 
-  private Expression primary() {
-    if (match(TokenType.FALSE))
-      return new Expression.Literal(false);
-    if (match(TokenType.TRUE))
-      return new Expression.Literal(true);
-    if (match(TokenType.NULL))
-      return new Expression.Literal(null);
-
-    if (match(TokenType.NUMBER, TokenType.STRING)) {
-      return new Expression.Literal(previous().literal);
+  private Expression literal() {
+    switch (tokens.type(current - 1)) {
+      case FALSE:
+        return new Expression.Literal(false);
+      case TRUE:
+        return new Expression.Literal(true);
+      case NULL:
+        return new Expression.Literal(null);
+      default:
+        return new Expression.Literal(tokens.literal(current - 1));
     }
+  }
 
-    if (match(TokenType.IDENTIFIER)) {
-      return new Expression.Variable(previous());
+  private Expression assignment(Expression target, Token equals, Expression value) {
+    if (target instanceof Expression.Variable) {
+      Token name = ((Expression.Variable) target).name;
+      return new Expression.Assign(name, value);
     }
 
-    if (match(TokenType.LEFT_PAREN)) {
-      Expression expr = expression();
-      consume(TokenType.RIGHT_PAREN, "Expect ')' after expression.");
-      return new Expression.Grouping(expr);
-    }
+    throw error(equals, "Invalid assignment target.");
+  }
 
-    throw error(peek(), "Expect expression.");
+  private boolean match(TokenType type) {
+    if (!check(type))
+      return false;
+    current++;
+    return true;
   }
 
-  private boolean match(TokenType... types) {
-    for (TokenType type : types) {
-      if (check(type)) {
-        advance();
-        return true;
-      }
-    }
-    return false;
+  private void consume(TokenType type, String message) {
+    if (!check(type))
+      throw error(peek(), message);
+    current++;
   }
 
-  private Token consume(TokenType type, String message) {
-    if (check(type))
-      return advance();
-    throw error(peek(), message);
+  /**
+   * Consumes a token the syntax tree keeps. Other tokens are only
+   * consumed by type, without making a {@link Token} for them.
+   */
+  private Token consumeToken(TokenType type, String message) {
+    consume(type, message);
+    return previous();
   }
 
   private boolean check(TokenType type) {
     if (isAtEnd())
       return false;
-    return peek().type == type;
+    return tokens.type(current) == type;
   }
 
-  private Token advance() {
+  private void advance() {
     if (!isAtEnd())
       current++;
-    return previous();
   }
 
-  private boolean isAtEnd() {
-    return peek().type == TokenType.EOF;
+  boolean isAtEnd() {
+    return tokens.type(current) == TokenType.EOF;
   }
 
   private Token peek() {
-    return tokens.get(current);
+    return tokens.token(current);
   }
 
   private Token previous() {
-    return tokens.get(current - 1);
+    return tokens.token(current - 1);
   }
 
   private ParseError error(Token token, String message) {
     String errorMessage = message + " at " + token;
+    if (diagnostics != null) {
+      // Only used to unwind to the enclosing declaration, so skip the stack trace
+      diagnostics.report(token.line, errorMessage);
+      throw new ParseError(errorMessage, false);
+    }
     System.err.println(errorMessage);
     throw new ParseError(errorMessage); // Changed to throw instead of return
   }
@@ -387,10 +564,10 @@ public class Parser {
     advance();
 
     while (!isAtEnd()) {
-      if (previous().type == TokenType.SEMICOLON)
+      if (tokens.type(current - 1) == TokenType.SEMICOLON)
         return;
 
-      switch (peek().type) {
+      switch (tokens.type(current)) {
         case FUNCTION:
         case LET:
         case CONST:
@@ -52,11 +52,52 @@ public abstract class Statement {
     public final Token name;
     public final List<Token> params;
     public final List<Statement> body;
+    // For a lazy function, the body is only known as a token range until it
+    // is first asked for.
+    private final TokenStream tokens;
+    private final int bodyStart;
+    private final int bodyEnd;
+    private List<Statement> parsedBody;
 
     public Function(Token name, List<Token> params, List<Statement> body) {
       this.name = name;
       this.params = params;
       this.body = body;
+      this.tokens = null;
+      this.bodyStart = -1;
+      this.bodyEnd = -1;
+    }
+
+    /**
+     * Creates a function whose body, the tokens {@code [bodyStart, bodyEnd)}
+     * between its braces, is parsed by {@link #getBody()}.
+     */
+    Function(Token name, List<Token> params, TokenStream tokens, int bodyStart, int bodyEnd) {
+      this.name = name;
+      this.params = params;
+      this.body = null;
+      this.tokens = tokens;
+      this.bodyStart = bodyStart;
+      this.bodyEnd = bodyEnd;
+    }
+
+    public boolean isLazy() {
+      return body == null;
+    }
+
+    /**
+     * Returns the body, parsing it first if the function is lazy. Syntax
+     * errors in a lazy body are only reported here.
+     */
+    public List<Statement> getBody() {
+      if (body != null)
+        return body;
+      if (parsedBody == null) {
+        Parser parser = new Parser(tokens, bodyStart, bodyEnd);
+        parser.setLazyFunctions(true);
+        parsedBody = parser.parse();
+      }
+      return parsedBody;
     }
 
     @Override
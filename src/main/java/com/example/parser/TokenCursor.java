@@ -0,0 +1,121 @@
+package com.example.parser;
+
+import java.util.List;
+
+import com.example.scanner.Token;
+import com.example.scanner.TokenSource;
+import com.example.scanner.TokenStream;
+import com.example.scanner.TokenType;
+
+/**
+ * Access to the tokens the {@link Parser} reads. Token types can be
+ * inspected without materializing a {@link Token} object. The parser only
+ * moves forward and never looks further back than the previous token.
+ */
+abstract class TokenCursor {
+  abstract TokenType type(int index);
+
+  abstract Token token(int index);
+
+  Object literal(int index) {
+    return token(index).literal;
+  }
+
+  static TokenCursor of(List<Token> tokens) {
+    return new ListCursor(tokens);
+  }
+
+  static TokenCursor of(TokenStream stream) {
+    return new StreamCursor(stream, stream.size() - 1);
+  }
+
+  /**
+   * Returns a cursor over the tokens before {@code end} that reports EOF at
+   * {@code end}.
+   */
+  static TokenCursor of(TokenStream stream, int end) {
+    return new StreamCursor(stream, end);
+  }
+
+  static TokenCursor of(TokenSource source) {
+    return new SourceCursor(source);
+  }
+
+  private static class ListCursor extends TokenCursor {
+    private final List<Token> tokens;
+
+    ListCursor(List<Token> tokens) {
+      this.tokens = tokens;
+    }
+
+    @Override
+    TokenType type(int index) {
+      return tokens.get(index).type;
+    }
+
+    @Override
+    Token token(int index) {
+      return tokens.get(index);
+    }
+  }
+
+  private static class StreamCursor extends TokenCursor {
+    private final TokenStream stream;
+    private final int end;
+
+    StreamCursor(TokenStream stream, int end) {
+      this.stream = stream;
+      this.end = end;
+    }
+
+    @Override
+    TokenType type(int index) {
+      if (index >= end)
+        return TokenType.EOF;
+      return stream.type(index);
+    }
+
+    @Override
+    Token token(int index) {
+      if (index >= end)
+        return new Token(TokenType.EOF, "", null, stream.line(end));
+      return stream.token(index);
+    }
+
+    @Override
+    Object literal(int index) {
+      return stream.literal(index);
+    }
+  }
+
+  /**
+   * Pulls tokens from a {@link TokenSource} as the parser advances, keeping
+   * only the current and the previous token in a ring buffer.
+   */
+  private static class SourceCursor extends TokenCursor {
+    private final TokenSource source;
+    private final Token[] ring = new Token[2];
+    private int pulled = -1;
+
+    SourceCursor(TokenSource source) {
+      this.source = source;
+    }
+
+    @Override
+    TokenType type(int index) {
+      return token(index).type;
+    }
+
+    @Override
+    Token token(int index) {
+      while (pulled < index) {
+        pulled++;
+        ring[pulled & 1] = source.nextToken();
+      }
+      if (index < pulled - 1) {
+        throw new IllegalStateException("Token " + index + " is no longer buffered");
+      }
+      return ring[index & 1];
+    }
+  }
+}
@@ -0,0 +1,529 @@
+package com.example.scanner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The lexing rules shared by all scanners. Subclasses only decide where the
+ * characters come from.
+ */
+abstract class AbstractScanner implements TokenSource {
+  // Integers with up to 15 digits are below 2^53 and exact as doubles
+  private static final int MAX_EXACT_DIGITS = 15;
+  private static final double[] POWERS_OF_TEN = {
+      1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+      1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+  };
+
+  private boolean implicitSemicolon = false;
+  private TokenStream stream;
+  private Token next;
+  private TokenType lastType;
+  private SymbolTable symbols = new SymbolTable();
+  private Diagnostics diagnostics;
+  int start = 0;
+  int current = 0;
+  int line = 1;
+  int limit;
+
+  /**
+   * Returns the character at {@code index}, which must be below {@link #limit}.
+   */
+  abstract char charAt(int index);
+
+  /**
+   * Makes more input available past {@link #limit}, keeping everything from
+   * {@link #start} on. Returns false once there is no more input.
+   */
+  abstract boolean fill();
+
+  /**
+   * Returns the source text in {@code [start, end)}.
+   */
+  abstract String text(int start, int end);
+
+  /**
+   * Returns the value of the string literal spanning {@code [start, end)},
+   * including its quotes.
+   */
+  abstract String stringValue(int start, int end);
+
+  abstract TokenStream newTokenStream();
+
+  /**
+   * Interns the identifier in {@code [start, end)}.
+   */
+  abstract int intern(SymbolTable symbols, int start, int end);
+
+  String characterAt(int index) {
+    return String.valueOf(charAt(index));
+  }
+
+  /**
+   * Returns the index after the source character starting at {@code index}.
+   */
+  int characterEnd(int index) {
+    return index + 1;
+  }
+
+  /**
+   * Sets the table identifiers are interned into, so several scanners of one
+   * compilation can share canonical names.
+   */
+  public void setSymbolTable(SymbolTable symbols) {
+    this.symbols = symbols;
+  }
+
+  public SymbolTable getSymbolTable() {
+    return symbols;
+  }
+
+  /**
+   * Makes the scanner record errors in {@code diagnostics} and skip past
+   * them instead of throwing a {@link ScannerError}.
+   */
+  public void setDiagnostics(Diagnostics diagnostics) {
+    this.diagnostics = diagnostics;
+  }
+
+  public Diagnostics getDiagnostics() {
+    return diagnostics;
+  }
+
+  /**
+   * When enabled, a semicolon token is added at the end of the source if the
+   * last token is not already one.
+   */
+  public void setImplicitSemicolon(boolean implicitSemicolon) {
+    this.implicitSemicolon = implicitSemicolon;
+  }
+
+  public List<Token> scanTokens() {
+    List<Token> tokens = new ArrayList<>();
+    Token token;
+    do {
+      token = nextToken();
+      tokens.add(token);
+    } while (token.type != TokenType.EOF);
+    return tokens;
+  }
+
+  /**
+   * Scans just far enough to produce the next token. Used directly, this lets
+   * the parser consume tokens while they are scanned, without ever holding
+   * more than a couple of them.
+   */
+  @Override
+  public Token nextToken() {
+    next = null;
+    while (next == null) {
+      if (isAtEnd()) {
+        if (implicitSemicolon && lastType != TokenType.SEMICOLON && lastType != TokenType.EOF) {
+          next = new Token(TokenType.SEMICOLON, ";", null, line);
+        } else {
+          next = new Token(TokenType.EOF, "", null, line);
+        }
+        break;
+      }
+
+      start = current;
+      scanToken();
+    }
+
+    lastType = next.type;
+    return next;
+  }
+
+  /**
+   * Scans the source into a compact {@link TokenStream} instead of a list of
+   * {@link Token} objects. No lexeme strings or literal values are created.
+   */
+  public TokenStream scanTokenStream() {
+    TokenStream tokens = scanChunk();
+    endTokenStream(tokens);
+    return tokens;
+  }
+
+  /**
+   * Scans up to {@link #limit} without adding an EOF token.
+   */
+  TokenStream scanChunk() {
+    stream = newTokenStream();
+    stream.setSymbolTable(symbols);
+    while (!isAtEnd()) {
+      start = current;
+      scanToken();
+    }
+    return stream;
+  }
+
+  /**
+   * Makes this scanner add its tokens to {@code tokens}, one per call to
+   * {@link #scanStreamToken()}.
+   */
+  void startTokenStream(TokenStream tokens) {
+    stream = tokens;
+  }
+
+  /**
+   * Scans until one more token has been added to the token stream. Returns
+   * false if the input ended first.
+   */
+  boolean scanStreamToken() {
+    int size = stream.size();
+    while (stream.size() == size) {
+      if (isAtEnd())
+        return false;
+      start = current;
+      scanToken();
+    }
+    return true;
+  }
+
+  /**
+   * Adds the tokens that end the input to {@code tokens}, as seen from where
+   * this scanner stopped.
+   */
+  void endTokenStream(TokenStream tokens) {
+    if (implicitSemicolon && (tokens.size() == 0 || tokens.type(tokens.size() - 1) != TokenType.SEMICOLON)) {
+      tokens.add(TokenType.SEMICOLON, current, 0, line);
+    }
+    tokens.add(TokenType.EOF, current, 0, line);
+  }
+
+  private void scanToken() {
+    char c = advance();
+    switch (c) {
+      case '(':
+        addToken(TokenType.LEFT_PAREN);
+        break;
+      case ')':
+        addToken(TokenType.RIGHT_PAREN);
+        break;
+      case '{':
+        addToken(TokenType.LEFT_BRACE);
+        break;
+      case '}':
+        addToken(TokenType.RIGHT_BRACE);
+        break;
+      case '[':
+        addToken(TokenType.LEFT_BRACKET);
+        break;
+      case ']':
+        addToken(TokenType.RIGHT_BRACKET);
+        break;
+      case ',':
+        addToken(TokenType.COMMA);
+        break;
+      case '.':
+        addToken(TokenType.DOT);
+        break;
+      case '-':
+        addToken(TokenType.MINUS);
+        break;
+      case '+':
+        addToken(TokenType.PLUS);
+        break;
+      case ';':
+        addToken(TokenType.SEMICOLON);
+        break;
+      case '*':
+        addToken(TokenType.STAR);
+        break;
+      case '%':
+        addToken(TokenType.MODULO);
+        break;
+
+      case '!':
+        addToken(match('=') ? TokenType.BANG_EQUAL : TokenType.BANG);
+        break;
+      case '=':
+        addToken(match('=') ? TokenType.EQUAL_EQUAL : TokenType.EQUAL);
+        break;
+      case '<':
+        addToken(match('=') ? TokenType.LESS_EQUAL : TokenType.LESS);
+        break;
+      case '>':
+        addToken(match('=') ? TokenType.GREATER_EQUAL : TokenType.GREATER);
+        break;
+
+      case '&':
+        if (match('&')) {
+          addToken(TokenType.AND);
+        } else {
+          error(line, "Unexpected character '&'");
+        }
+        break;
+
+      case '|':
+        if (match('|')) {
+          addToken(TokenType.OR);
+        } else {
+          error(line, "Unexpected character '|'");
+        }
+        break;
+
+      case '/':
+        if (match('/')) {
+          while (peek() != '\n' && !isAtEnd())
+            advance();
+        } else if (match('*')) {
+          multiLineComment();
+        } else {
+          addToken(TokenType.SLASH);
+        }
+        break;
+
+      case ' ':
+      case '\r':
+      case '\t':
+        break;
+
+      case '\n':
+        line++;
+        break;
+
+      case '"':
+        string('"');
+        break;
+      case '\'':
+        string('\'');
+        break;
+
+      default:
+        if (isDigit(c)) {
+          number();
+        } else if (isAlpha(c)) {
+          identifier();
+        } else {
+          error(line, "Unexpected character '" + characterAt(start) + "'");
+          current = characterEnd(start);
+        }
+        break;
+    }
+  }
+
+  private void string(char quote) {
+    while (peek() != quote && !isAtEnd()) {
+      if (peek() == '\n') {
+        line++;
+      } else if (peek() == '\\' && peekNext() == quote) {
+        advance();
+      }
+      advance();
+    }
+
+    if (isAtEnd()) {
+      error(line, "Unterminated string.");
+      return;
+    }
+
+    advance();
+    if (stream != null) {
+      addToken(TokenType.STRING);
+    } else {
+      addToken(TokenType.STRING, stringValue(start, current));
+    }
+  }
+
+  private void multiLineComment() {
+    while (!isAtEnd() && !(peek() == '*' && peekNext() == '/')) {
+      if (peek() == '\n')
+        line++;
+      advance();
+    }
+
+    if (isAtEnd()) {
+      error(line, "Unterminated multi-line comment.");
+      return;
+    }
+
+    advance();
+    advance();
+  }
+
+  private void number() {
+    // Accumulate the digits while scanning; the literal is not re-read.
+    long mantissa = charAt(start) - '0';
+    int digits = 1;
+    int fractionDigits = 0;
+    while (isDigit(peek())) {
+      mantissa = mantissa * 10 + (advance() - '0');
+      digits++;
+    }
+
+    if (peek() == '.' && isDigit(peekNext())) {
+      advance();
+      while (isDigit(peek())) {
+        mantissa = mantissa * 10 + (advance() - '0');
+        digits++;
+        fractionDigits++;
+      }
+    }
+
+    double value;
+    if (digits <= MAX_EXACT_DIGITS && fractionDigits < POWERS_OF_TEN.length) {
+      // Both operands are exact doubles, so one division rounds correctly.
+      value = mantissa / POWERS_OF_TEN[fractionDigits];
+    } else {
+      value = Double.parseDouble(text(start, current));
+    }
+
+    if (stream != null) {
+      stream.addNumber(start, current - start, line, value);
+      return;
+    }
+    addToken(TokenType.NUMBER, value);
+  }
+
+  private void identifier() {
+    while (isAlphaNumeric(peek()))
+      advance();
+
+    TokenType type = keyword();
+    if (type != TokenType.IDENTIFIER || stream != null) {
+      addToken(type);
+      return;
+    }
+
+    int symbol = intern(symbols, start, current);
+    next = new Token(type, symbols.name(symbol), null, line, symbol);
+  }
+
+  /**
+   * Recognizes keywords by length and first character, comparing the rest
+   * in place so no string is created for the identifier.
+   */
+  private TokenType keyword() {
+    switch (current - start) {
+      case 2:
+        if (isKeyword("if"))
+          return TokenType.IF;
+        break;
+      case 3:
+        if (isKeyword("let"))
+          return TokenType.LET;
+        if (isKeyword("for"))
+          return TokenType.FOR;
+        break;
+      case 4:
+        switch (charAt(start)) {
+          case 'e':
+            if (isKeyword("else"))
+              return TokenType.ELSE;
+            break;
+          case 't':
+            if (isKeyword("true"))
+              return TokenType.TRUE;
+            break;
+          case 'n':
+            if (isKeyword("null"))
+              return TokenType.NULL;
+            break;
+        }
+        break;
+      case 5:
+        switch (charAt(start)) {
+          case 'c':
+            if (isKeyword("const"))
+              return TokenType.CONST;
+            break;
+          case 'f':
+            if (isKeyword("false"))
+              return TokenType.FALSE;
+            break;
+          case 'w':
+            if (isKeyword("while"))
+              return TokenType.WHILE;
+            break;
+        }
+        break;
+      case 6:
+        if (isKeyword("return"))
+          return TokenType.RETURN;
+        break;
+      case 8:
+        if (isKeyword("function"))
+          return TokenType.FUNCTION;
+        break;
+    }
+    return TokenType.IDENTIFIER;
+  }
+
+  private boolean isKeyword(String keyword) {
+    for (int i = 0; i < keyword.length(); i++) {
+      if (charAt(start + i) != keyword.charAt(i))
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Throws a {@link ScannerError}, or just records it when collecting
+   * diagnostics. The offending characters have already been consumed, so the
+   * caller simply goes on with the next token.
+   */
+  private void error(int line, String message) {
+    if (diagnostics == null)
+      throw new ScannerError(line, message);
+    diagnostics.report(line, message);
+  }
+
+  private char advance() {
+    if (current >= limit)
+      fill();
+    return charAt(current++);
+  }
+
+  private boolean match(char expected) {
+    if (isAtEnd() || charAt(current) != expected)
+      return false;
+    current++;
+    return true;
+  }
+
+  private char peek() {
+    if (isAtEnd())
+      return '\0';
+    return charAt(current);
+  }
+
+  private char peekNext() {
+    while (current + 1 >= limit) {
+      if (!fill())
+        return '\0';
+    }
+    return charAt(current + 1);
+  }
+
+  private boolean isAlpha(char c) {
+    return (c >= 'a' && c <= 'z') ||
+        (c >= 'A' && c <= 'Z') ||
+        c == '_';
+  }
+
+  private boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private boolean isAlphaNumeric(char c) {
+    return isAlpha(c) || isDigit(c);
+  }
+
+  private void addToken(TokenType type) {
+    addToken(type, null);
+  }
+
+  private void addToken(TokenType type, Object literal) {
+    if (stream != null) {
+      stream.add(type, start, current - start, line);
+      return;
+    }
+
+    next = new Token(type, text(start, current), literal, line);
+  }
+
+  private boolean isAtEnd() {
+    return current >= limit && !fill();
+  }
+}
@@ -0,0 +1,67 @@
+package com.example.scanner;
+
+import java.util.Arrays;
+
+/**
+ * Collects the errors of one compilation instead of aborting on the first
+ * one. Scanners and parsers that are given a {@code Diagnostics} record each
+ * error here, recover and carry on. Errors are kept as parallel arrays of
+ * lines and messages.
+ */
+public class Diagnostics {
+  private int[] lines = new int[8];
+  private String[] messages = new String[8];
+  private int size = 0;
+
+  public void report(int line, String message) {
+    if (size == lines.length) {
+      lines = Arrays.copyOf(lines, size * 2);
+      messages = Arrays.copyOf(messages, size * 2);
+    }
+    lines[size] = line;
+    messages[size] = message;
+    size++;
+  }
+
+  /**
+   * Appends the errors of {@code other}, for example of a chunk scanned on
+   * its own.
+   */
+  public void addAll(Diagnostics other) {
+    for (int i = 0; i < other.size; i++) {
+      report(other.lines[i], other.messages[i]);
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean hasErrors() {
+    return size > 0;
+  }
+
+  public int line(int index) {
+    return lines[index];
+  }
+
+  public String message(int index) {
+    return messages[index];
+  }
+
+  public void clear() {
+    Arrays.fill(messages, 0, size, null);
+    size = 0;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < size; i++) {
+      if (i > 0)
+        builder.append('\n');
+      builder.append("Line ").append(lines[i]).append(": ").append(messages[i]);
+    }
+    return builder.toString();
+  }
+}
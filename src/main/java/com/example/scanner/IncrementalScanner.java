@@ -0,0 +1,107 @@
+package com.example.scanner;
+
+/**
+ * Updates a {@link TokenStream} after a text edit by re-scanning only the
+ * damaged region. Scanning restarts right after the last token whose
+ * lookahead ends before the edit and stops as soon as a new token lines up
+ * with an old one behind the edit; from there on the text is unchanged, so
+ * the remaining old tokens are reused with shifted offsets and lines.
+ */
+public class IncrementalScanner {
+  // How many chars past its end the scanner may look to end a token, as a
+  // number does to tell "1.5" from "1."
+  private static final int LOOKAHEAD = 2;
+
+  private boolean implicitSemicolon = false;
+  private TokenEdit lastEdit;
+
+  public void setImplicitSemicolon(boolean implicitSemicolon) {
+    this.implicitSemicolon = implicitSemicolon;
+  }
+
+  /**
+   * Returns which tokens the last {@link #rescan} replaced.
+   */
+  public TokenEdit getLastEdit() {
+    return lastEdit;
+  }
+
+  /**
+   * Returns the tokens of {@code previous}'s source after replacing
+   * {@code removedLength} chars at {@code offset} with {@code insertedText}.
+   */
+  public TokenStream rescan(TokenStream previous, int offset, int removedLength, String insertedText) {
+    char[] oldSource = previous.source();
+    if (oldSource == null) {
+      throw new IllegalArgumentException("Incremental scanning needs a char source");
+    }
+
+    int editEnd = offset + removedLength;
+    int insertedEnd = offset + insertedText.length();
+    int delta = insertedText.length() - removedLength;
+    char[] source = new char[oldSource.length + delta];
+    System.arraycopy(oldSource, 0, source, 0, offset);
+    insertedText.getChars(0, insertedText.length(), source, offset);
+    System.arraycopy(oldSource, editEnd, source, insertedEnd, oldSource.length - editEnd);
+
+    // A token is followed by the same chars as before up to the edit, so it
+    // cannot change unless the scanner looked into the edit to end it.
+    int first = firstTokenEndingAt(previous, offset - LOOKAHEAD + 1);
+    int restart = 0;
+    int line = 1;
+    if (first > 0) {
+      restart = previous.start(first - 1) + previous.length(first - 1);
+      line = previous.line(first - 1);
+    }
+
+    TokenStream tokens = new TokenStream(source, previous.size() + 16);
+    tokens.setSymbolTable(previous.symbolTable());
+    tokens.addRange(previous, 0, first, 0, 0);
+
+    Scanner scanner = new Scanner(source, restart, source.length, line);
+    scanner.setImplicitSemicolon(implicitSemicolon);
+    scanner.startTokenStream(tokens);
+
+    int old = first;
+    while (scanner.scanStreamToken()) {
+      int last = tokens.size() - 1;
+      if (tokens.start(last) < insertedEnd)
+        continue;
+
+      int oldStart = tokens.start(last) - delta;
+      while (old < previous.size() && previous.start(old) < oldStart)
+        old++;
+      if (old < previous.size() && previous.start(old) == oldStart
+          && previous.length(old) == tokens.length(last)
+          && previous.typeOrdinal(old) == tokens.typeOrdinal(last)) {
+        int lineDelta = tokens.line(last) - previous.line(old);
+        tokens.addRange(previous, old + 1, previous.size(), delta, lineDelta);
+        lastEdit = new TokenEdit(first, old - first, last - first);
+        return tokens;
+      }
+    }
+
+    scanner.endTokenStream(tokens);
+    lastEdit = new TokenEdit(first, previous.size() - first, tokens.size() - first);
+    return tokens;
+  }
+
+  /**
+   * Returns the index of the first token that ends at or after
+   * {@code offset}. The EOF token ends at the end of the source, so there
+   * always is one.
+   */
+  private static int firstTokenEndingAt(TokenStream tokens, int offset) {
+    int low = 0;
+    int high = tokens.size() - 1;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (tokens.start(mid) + tokens.length(mid) >= offset) {
+        high = mid;
+      } else {
+        low = mid + 1;
+      }
+    }
+    return low;
+  }
+}
@@ -0,0 +1,80 @@
+package com.example.scanner;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads a UTF-8 file by memory-mapping it one window at a time. Multi-byte
+ * sequences split across two windows are carried over into the next one.
+ */
+public class MappedFileReader extends Reader {
+  private static final int DEFAULT_WINDOW_SIZE = 16 * 1024 * 1024;
+
+  private final FileChannel channel;
+  private final int windowSize;
+  private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+  private final long size;
+  private long position = 0;
+  private MappedByteBuffer window;
+
+  public MappedFileReader(FileChannel channel, int windowSize) throws IOException {
+    this.channel = channel;
+    this.windowSize = windowSize;
+    this.size = channel.size();
+  }
+
+  public MappedFileReader(FileChannel channel) throws IOException {
+    this(channel, DEFAULT_WINDOW_SIZE);
+  }
+
+  @Override
+  public int read(char[] buffer, int offset, int length) throws IOException {
+    if (length == 0)
+      return 0;
+
+    CharBuffer out = CharBuffer.wrap(buffer, offset, length);
+    while (out.position() == offset) {
+      if (window == null || !window.hasRemaining()) {
+        if (!mapNextWindow())
+          return -1;
+      }
+
+      boolean last = position + window.limit() >= size;
+      CoderResult result = decoder.decode(window, out, last);
+      if (result.isError()) {
+        result.throwException();
+      }
+      if (result.isUnderflow() && window.hasRemaining()) {
+        // Incomplete sequence at the end of the window; remap from its start.
+        position += window.position();
+        window = null;
+      }
+    }
+    return out.position() - offset;
+  }
+
+  private boolean mapNextWindow() throws IOException {
+    if (window != null) {
+      position += window.limit();
+    }
+    if (position >= size) {
+      window = null;
+      return false;
+    }
+    long length = Math.min(windowSize, size - position);
+    window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+    return true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    window = null;
+    channel.close();
+  }
+}
@@ -0,0 +1,133 @@
+package com.example.scanner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Scans a large source in chunks on a {@link ForkJoinPool}. A quick pre-scan
+ * finds line breaks that are outside of string literals and comments; the
+ * source is split at those, so every chunk starts at a token boundary and
+ * can be scanned on its own. The chunk token streams are then joined in
+ * source order.
+ */
+public class ParallelScanner {
+  private static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+  private final char[] source;
+  private final int chunkSize;
+  private boolean implicitSemicolon = false;
+  private SymbolTable symbols = new SymbolTable();
+  private Diagnostics diagnostics;
+
+  public ParallelScanner(char[] source, int chunkSize) {
+    this.source = source;
+    this.chunkSize = chunkSize;
+  }
+
+  public ParallelScanner(char[] source) {
+    this(source, DEFAULT_CHUNK_SIZE);
+  }
+
+  public void setImplicitSemicolon(boolean implicitSemicolon) {
+    this.implicitSemicolon = implicitSemicolon;
+  }
+
+  public void setSymbolTable(SymbolTable symbols) {
+    this.symbols = symbols;
+  }
+
+  /**
+   * Makes the scanner record errors instead of throwing them. Every chunk
+   * collects its own errors; they are added in source order.
+   */
+  public void setDiagnostics(Diagnostics diagnostics) {
+    this.diagnostics = diagnostics;
+  }
+
+  public TokenStream scanTokenStream(ForkJoinPool pool) {
+    List<Scanner> chunks = split();
+    List<ForkJoinTask<TokenStream>> tasks = new ArrayList<>(chunks.size());
+    for (Scanner chunk : chunks) {
+      if (diagnostics != null)
+        chunk.setDiagnostics(new Diagnostics());
+      tasks.add(pool.submit(chunk::scanChunk));
+    }
+
+    // Joining in order reports the first error in the source.
+    TokenStream tokens = new TokenStream(source, Math.max(16, source.length / 4));
+    tokens.setSymbolTable(symbols);
+    for (int i = 0; i < tasks.size(); i++) {
+      tokens.addAll(tasks.get(i).join());
+      if (diagnostics != null)
+        diagnostics.addAll(chunks.get(i).getDiagnostics());
+    }
+
+    Scanner last = chunks.get(chunks.size() - 1);
+    last.setImplicitSemicolon(implicitSemicolon);
+    last.endTokenStream(tokens);
+    return tokens;
+  }
+
+  /**
+   * Cuts the source after line breaks that are outside of string literals and
+   * comments, roughly every {@code chunkSize} characters. Follows the same
+   * rules as the scanner for quotes, escapes and comments.
+   */
+  private List<Scanner> split() {
+    List<Scanner> chunks = new ArrayList<>();
+    int chunkStart = 0;
+    int chunkLine = 1;
+    int line = 1;
+    int i = 0;
+
+    while (i < source.length) {
+      char c = source[i++];
+      switch (c) {
+        case '\n':
+          line++;
+          if (i - chunkStart >= chunkSize && i < source.length) {
+            chunks.add(new Scanner(source, chunkStart, i, chunkLine));
+            chunkStart = i;
+            chunkLine = line;
+          }
+          break;
+
+        case '"':
+        case '\'':
+          while (i < source.length && source[i] != c) {
+            if (source[i] == '\n') {
+              line++;
+            } else if (source[i] == '\\' && i + 1 < source.length && source[i + 1] == c) {
+              i++;
+            }
+            i++;
+          }
+          i++;
+          break;
+
+        case '/':
+          if (i < source.length && source[i] == '/') {
+            while (i < source.length && source[i] != '\n')
+              i++;
+          } else if (i < source.length && source[i] == '*') {
+            i++;
+            while (i < source.length && !(source[i] == '*' && i + 1 < source.length && source[i + 1] == '/')) {
+              if (source[i] == '\n')
+                line++;
+              i++;
+            }
+            i += 2;
+          }
+          break;
+
+        default:
+          break;
+      }
+    }
+
+    chunks.add(new Scanner(source, chunkStart, source.length, chunkLine));
+    return chunks;
+  }
+}
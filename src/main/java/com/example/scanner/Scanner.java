@@ -1,272 +1,131 @@
 package com.example.scanner;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
-public class Scanner {
-  private final String source;
-  private final List<Token> tokens = new ArrayList<>();
-  private int start = 0;
-  private int current = 0;
-  private int line = 1;
+public class Scanner extends AbstractScanner {
+  private static final int DEFAULT_WINDOW_SIZE = 8192;
 
-  private static final Map<String, TokenType> keywords;
-
-  static {
-    keywords = new HashMap<>();
-    keywords.put("function", TokenType.FUNCTION);
-    keywords.put("let", TokenType.LET);
-    keywords.put("const", TokenType.CONST);
-    keywords.put("if", TokenType.IF);
-    keywords.put("else", TokenType.ELSE);
-    keywords.put("true", TokenType.TRUE);
-    keywords.put("false", TokenType.FALSE);
-    keywords.put("null", TokenType.NULL);
-    keywords.put("while", TokenType.WHILE);
-    keywords.put("for", TokenType.FOR);
-    keywords.put("return", TokenType.RETURN);
-  }
+  private final Reader reader;
+  private char[] source;
+  private boolean exhausted = false;
 
   public Scanner(String source) {
-    this.source = source;
+    this(source.toCharArray());
   }
 
-  public List<Token> scanTokens() {
-    while (!isAtEnd()) {
-      start = current;
-      scanToken();
-    }
-
-    tokens.add(new Token(TokenType.EOF, "", null, line));
-    return tokens;
+  public Scanner(char[] source) {
+    this(source, 0, source.length, 1);
   }
 
-  private void scanToken() {
-    char c = advance();
-    switch (c) {
-      case '(':
-        addToken(TokenType.LEFT_PAREN);
-        break;
-      case ')':
-        addToken(TokenType.RIGHT_PAREN);
-        break;
-      case '{':
-        addToken(TokenType.LEFT_BRACE);
-        break;
-      case '}':
-        addToken(TokenType.RIGHT_BRACE);
-        break;
-      case '[':
-        addToken(TokenType.LEFT_BRACKET);
-        break;
-      case ']':
-        addToken(TokenType.RIGHT_BRACKET);
-        break;
-      case ',':
-        addToken(TokenType.COMMA);
-        break;
-      case '.':
-        addToken(TokenType.DOT);
-        break;
-      case '-':
-        addToken(TokenType.MINUS);
-        break;
-      case '+':
-        addToken(TokenType.PLUS);
-        break;
-      case ';':
-        addToken(TokenType.SEMICOLON);
-        break;
-      case '*':
-        addToken(TokenType.STAR);
-        break;
-      case '%':
-        addToken(TokenType.MODULO);
-        break;
-
-      case '!':
-        addToken(match('=') ? TokenType.BANG_EQUAL : TokenType.BANG);
-        break;
-      case '=':
-        addToken(match('=') ? TokenType.EQUAL_EQUAL : TokenType.EQUAL);
-        break;
-      case '<':
-        addToken(match('=') ? TokenType.LESS_EQUAL : TokenType.LESS);
-        break;
-      case '>':
-        addToken(match('=') ? TokenType.GREATER_EQUAL : TokenType.GREATER);
-        break;
-
-      case '&':
-        if (match('&')) {
-          addToken(TokenType.AND);
-        } else {
-          throw error(line, "Unexpected character '&'");
-        }
-        break;
-
-      case '|':
-        if (match('|')) {
-          addToken(TokenType.OR);
-        } else {
-          throw error(line, "Unexpected character '|'");
-        }
-        break;
-
-      case '/':
-        if (match('/')) {
-          while (peek() != '\n' && !isAtEnd())
-            advance();
-        } else if (match('*')) {
-          multiLineComment();
-        } else {
-          addToken(TokenType.SLASH);
-        }
-        break;
-
-      case ' ':
-      case '\r':
-      case '\t':
-        break;
-
-      case '\n':
-        line++;
-        break;
-
-      case '"':
-        string('"');
-        break;
-      case '\'':
-        string('\'');
-        break;
-
-      default:
-        if (isDigit(c)) {
-          number();
-        } else if (isAlpha(c)) {
-          identifier();
-        } else {
-          throw error(line, "Unexpected character '" + c + "'");
-        }
-        break;
-    }
-  }
-
-  private void string(char quote) {
-    StringBuilder value = new StringBuilder();
-
-    while (peek() != quote && !isAtEnd()) {
-      if (peek() == '\n') {
-        line++;
-      } else if (peek() == '\\' && peekNext() == quote) {
-        advance();
-        value.append(advance());
-      } else {
-        value.append(advance());
-      }
-    }
-
-    if (isAtEnd()) {
-      throw error(line, "Unterminated string.");
-    }
-
-    advance();
-    addToken(TokenType.STRING, value.toString());
-  }
-
-  private void multiLineComment() {
-    while (!isAtEnd() && !(peek() == '*' && peekNext() == '/')) {
-      if (peek() == '\n')
-        line++;
-      advance();
-    }
-
-    if (isAtEnd()) {
-      throw error(line, "Unterminated multi-line comment.");
-    }
-
-    advance();
-    advance();
-  }
-
-  private void number() {
-    while (isDigit(peek()))
-      advance();
-
-    if (peek() == '.' && isDigit(peekNext())) {
-      advance();
-      while (isDigit(peek()))
-        advance();
-    }
-
-    Double value = Double.parseDouble(source.substring(start, current));
-    addToken(TokenType.NUMBER, value);
+  /**
+   * Creates a scanner for the characters in {@code [from, to)} of
+   * {@code source}, the first of which is on {@code line}. Token offsets
+   * stay relative to the whole array.
+   */
+  Scanner(char[] source, int from, int to, int line) {
+    this.reader = null;
+    this.source = source;
+    this.current = from;
+    this.limit = to;
+    this.line = line;
   }
 
-  private void identifier() {
-    while (isAlphaNumeric(peek()))
-      advance();
-
-    String text = source.substring(start, current);
-    TokenType type = keywords.get(text);
-    if (type == null)
-      type = TokenType.IDENTIFIER;
-    addToken(type);
+  /**
+   * Creates a scanner that reads its source from {@code reader} in windows
+   * of {@code windowSize} chars. Only the token currently being scanned is
+   * kept when the window is refilled, so the source never has to be fully
+   * in memory.
+   */
+  public Scanner(Reader reader, int windowSize) {
+    this.reader = reader;
+    this.source = new char[windowSize];
+    this.limit = 0;
   }
 
-  private ScannerError error(int line, String message) {
-    return new ScannerError(line, message);
+  public Scanner(Reader reader) {
+    this(reader, DEFAULT_WINDOW_SIZE);
   }
 
-  private char advance() {
-    return source.charAt(current++);
+  public Scanner(ReadableByteChannel channel) {
+    this(Channels.newReader(channel, StandardCharsets.UTF_8.newDecoder(), -1));
   }
 
-  private boolean match(char expected) {
-    if (isAtEnd() || source.charAt(current) != expected)
-      return false;
-    current++;
-    return true;
+  @Override
+  char charAt(int index) {
+    return source[index];
   }
 
-  private char peek() {
-    if (isAtEnd())
-      return '\0';
-    return source.charAt(current);
+  @Override
+  String text(int start, int end) {
+    return new String(source, start, end - start);
   }
 
-  private char peekNext() {
-    if (current + 1 >= source.length())
-      return '\0';
-    return source.charAt(current + 1);
+  @Override
+  String stringValue(int start, int end) {
+    return unescape(source, start, end);
   }
 
-  private boolean isAlpha(char c) {
-    return (c >= 'a' && c <= 'z') ||
-        (c >= 'A' && c <= 'Z') ||
-        c == '_';
+  @Override
+  TokenStream newTokenStream() {
+    if (reader != null) {
+      throw new IllegalStateException("Token streams need the whole source in memory");
+    }
+    return new TokenStream(source, Math.max(16, (limit - current) / 4));
   }
 
-  private boolean isDigit(char c) {
-    return c >= '0' && c <= '9';
+  @Override
+  int intern(SymbolTable symbols, int start, int end) {
+    return symbols.intern(source, start, end);
   }
 
-  private boolean isAlphaNumeric(char c) {
-    return isAlpha(c) || isDigit(c);
+  static String unescape(char[] source, int start, int end) {
+    char quote = source[start];
+    StringBuilder value = new StringBuilder(end - start - 2);
+    for (int i = start + 1; i < end - 1; i++) {
+      if (source[i] == '\\' && i + 1 < end - 1 && source[i + 1] == quote) {
+        i++;
+      }
+      value.append(source[i]);
+    }
+    return value.toString();
   }
 
-  private void addToken(TokenType type) {
-    addToken(type, null);
-  }
+  /**
+   * Reads more characters into the window, keeping the token that starts at
+   * {@code start}. Returns false once the reader is exhausted.
+   */
+  @Override
+  boolean fill() {
+    if (reader == null || exhausted)
+      return false;
 
-  private void addToken(TokenType type, Object literal) {
-    String text = source.substring(start, current);
-    tokens.add(new Token(type, text, literal, line));
-  }
+    if (start > 0) {
+      System.arraycopy(source, start, source, 0, limit - start);
+      limit -= start;
+      current -= start;
+      start = 0;
+    }
+    if (source.length - limit < 2) {
+      source = Arrays.copyOf(source, source.length * 2);
+    }
 
-  private boolean isAtEnd() {
-    return current >= source.length();
+    int read;
+    try {
+      read = reader.read(source, limit, source.length - limit);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    if (read < 0) {
+      exhausted = true;
+      return false;
+    }
+    limit += read;
+    return true;
   }
 }
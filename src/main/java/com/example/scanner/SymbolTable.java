@@ -0,0 +1,130 @@
+package com.example.scanner;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Interns identifier names for one compilation. Every distinct name gets a
+ * dense id and a single canonical String instance, so later phases can
+ * compare names by identity. Names can be looked up straight from a range of
+ * the source; a String is only created the first time a name is seen.
+ */
+public class SymbolTable {
+  private String[] names = new String[64];
+  private int[] hashes = new int[64];
+  // Open addressing table of symbol ids plus one; zero marks a free slot.
+  private int[] slots = new int[128];
+  private int size = 0;
+
+  public int size() {
+    return size;
+  }
+
+  public String name(int symbol) {
+    return names[symbol];
+  }
+
+  /**
+   * Returns the id of {@code name}, or -1 if it has not been interned.
+   */
+  public int find(String name) {
+    int hash = name.hashCode();
+    int mask = slots.length - 1;
+    for (int slot = hash & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+      int symbol = slots[slot] - 1;
+      if (hashes[symbol] == hash && names[symbol].equals(name))
+        return symbol;
+    }
+    return -1;
+  }
+
+  public int intern(String name) {
+    int symbol = find(name);
+    if (symbol >= 0)
+      return symbol;
+    return add(name, name.hashCode());
+  }
+
+  int intern(char[] source, int start, int end) {
+    int hash = 0;
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + source[i];
+    }
+
+    int mask = slots.length - 1;
+    for (int slot = hash & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+      int symbol = slots[slot] - 1;
+      if (hashes[symbol] == hash && matches(names[symbol], source, start, end))
+        return symbol;
+    }
+    return add(new String(source, start, end - start), hash);
+  }
+
+  /**
+   * Interns an ASCII name from UTF-8 source bytes.
+   */
+  int intern(ByteBuffer source, int start, int end) {
+    int hash = 0;
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + (source.get(i) & 0xFF);
+    }
+
+    int mask = slots.length - 1;
+    for (int slot = hash & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+      int symbol = slots[slot] - 1;
+      if (hashes[symbol] == hash && matches(names[symbol], source, start, end))
+        return symbol;
+    }
+    return add(Utf8Scanner.text(source, start, end), hash);
+  }
+
+  private static boolean matches(String name, char[] source, int start, int end) {
+    if (name.length() != end - start)
+      return false;
+    for (int i = start; i < end; i++) {
+      if (name.charAt(i - start) != source[i])
+        return false;
+    }
+    return true;
+  }
+
+  private static boolean matches(String name, ByteBuffer source, int start, int end) {
+    if (name.length() != end - start)
+      return false;
+    for (int i = start; i < end; i++) {
+      if (name.charAt(i - start) != (source.get(i) & 0xFF))
+        return false;
+    }
+    return true;
+  }
+
+  private int add(String name, int hash) {
+    if (size == names.length) {
+      names = Arrays.copyOf(names, size * 2);
+      hashes = Arrays.copyOf(hashes, size * 2);
+    }
+    names[size] = name;
+    hashes[size] = hash;
+    if ((size + 1) * 2 > slots.length) {
+      rehash(slots.length * 2);
+    }
+    insert(size, hash);
+    return size++;
+  }
+
+  private void rehash(int capacity) {
+    slots = new int[capacity];
+    for (int symbol = 0; symbol < size; symbol++) {
+      insert(symbol, hashes[symbol]);
+    }
+  }
+
+  private void insert(int symbol, int hash) {
+    int mask = slots.length - 1;
+    int slot = hash & mask;
+    while (slots[slot] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    slots[slot] = symbol + 1;
+  }
+}
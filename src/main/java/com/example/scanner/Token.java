@@ -5,12 +5,19 @@ public class Token {
   public String lexeme;
   public final Object literal;
   public final int line;
+  // Id of the identifier in the compilation's SymbolTable, or -1
+  public final int symbol;
 
   public Token(TokenType type, String lexeme, Object literal, int line) {
+    this(type, lexeme, literal, line, -1);
+  }
+
+  public Token(TokenType type, String lexeme, Object literal, int line, int symbol) {
     this.type = type;
     this.lexeme = lexeme;
     this.literal = literal;
     this.line = line;
+    this.symbol = symbol;
   }
 
   public String toString() {
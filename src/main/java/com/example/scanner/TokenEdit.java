@@ -0,0 +1,24 @@
+package com.example.scanner;
+
+/**
+ * Describes how a token sequence changed: {@code removed} tokens starting at
+ * index {@code start} were replaced by {@code inserted} new ones. All tokens
+ * before {@code start} and after the replaced range are unchanged apart from
+ * their offsets and lines.
+ */
+public class TokenEdit {
+  public final int start;
+  public final int removed;
+  public final int inserted;
+
+  public TokenEdit(int start, int removed, int inserted) {
+    this.start = start;
+    this.removed = removed;
+    this.inserted = inserted;
+  }
+
+  @Override
+  public String toString() {
+    return "TokenEdit(" + start + ", -" + removed + ", +" + inserted + ")";
+  }
+}
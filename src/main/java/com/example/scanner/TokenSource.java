@@ -0,0 +1,9 @@
+package com.example.scanner;
+
+/**
+ * A source of tokens that are produced one at a time, on demand. After the
+ * end of the input has been reached, every call returns an EOF token.
+ */
+public interface TokenSource {
+  Token nextToken();
+}
@@ -0,0 +1,241 @@
+package com.example.scanner;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compact token representation. Tokens are stored as parallel int arrays
+ * (type, start offset, length and line) that point into the scanned source,
+ * so scanning does not allocate an object per token. The values of number
+ * literals are kept unboxed in a pool of their own, which the type word of
+ * a number token indexes. Lexemes and literal values are only materialized
+ * when asked for. The source is either a char array or, for
+ * {@link Utf8Scanner}, UTF-8 bytes.
+ */
+public class TokenStream {
+  private static final TokenType[] TYPES = TokenType.values();
+  // The low bits of a type word hold the type ordinal; a number token keeps
+  // the index of its value in the number pool above them
+  private static final int TYPE_BITS = 6;
+  private static final int TYPE_MASK = (1 << TYPE_BITS) - 1;
+  private static final int NUMBER = TokenType.NUMBER.ordinal();
+
+  static {
+    if (TYPES.length > TYPE_MASK + 1)
+      throw new AssertionError("Token types do not fit in " + TYPE_BITS + " bits");
+  }
+
+  private final char[] source;
+  private final ByteBuffer bytes;
+  private final String[] fixedLexemes = new String[TYPES.length];
+  private SymbolTable symbols = new SymbolTable();
+  private int[] types;
+  private int[] starts;
+  private int[] lengths;
+  private int[] lines;
+  private double[] numbers = new double[16];
+  private int numberCount = 0;
+  private int size = 0;
+
+  public TokenStream(char[] source) {
+    this(source, 16);
+  }
+
+  public TokenStream(char[] source, int capacity) {
+    this(source, null, capacity);
+  }
+
+  public TokenStream(ByteBuffer bytes, int capacity) {
+    this(null, bytes, capacity);
+  }
+
+  private TokenStream(char[] source, ByteBuffer bytes, int capacity) {
+    this.source = source;
+    this.bytes = bytes;
+    this.types = new int[capacity];
+    this.starts = new int[capacity];
+    this.lengths = new int[capacity];
+    this.lines = new int[capacity];
+  }
+
+  void add(TokenType type, int start, int length, int line) {
+    if (size == types.length) {
+      grow(size * 2);
+    }
+    types[size] = type.ordinal();
+    starts[size] = start;
+    lengths[size] = length;
+    lines[size] = line;
+    size++;
+  }
+
+  void addNumber(int start, int length, int line, double value) {
+    add(TokenType.NUMBER, start, length, line);
+    types[size - 1] = numberWord(value);
+  }
+
+  /**
+   * Adds {@code value} to the number pool and returns the type word of a
+   * number token holding it.
+   */
+  private int numberWord(double value) {
+    if (numberCount > Integer.MAX_VALUE >>> TYPE_BITS) {
+      throw new IllegalStateException("Too many number literals");
+    }
+    if (numberCount == numbers.length) {
+      numbers = Arrays.copyOf(numbers, numberCount * 2);
+    }
+    numbers[numberCount] = value;
+    return numberCount++ << TYPE_BITS | NUMBER;
+  }
+
+  /**
+   * Appends all tokens of {@code other}, which must have been scanned from the
+   * same source.
+   */
+  void addAll(TokenStream other) {
+    addRange(other, 0, other.size, 0, 0);
+  }
+
+  /**
+   * Appends the tokens {@code [from, to)} of {@code other}, moving their
+   * offsets by {@code offsetDelta} and their lines by {@code lineDelta}.
+   */
+  void addRange(TokenStream other, int from, int to, int offsetDelta, int lineDelta) {
+    int count = to - from;
+    if (size + count > types.length) {
+      grow(Math.max(size + count, size * 2));
+    }
+    System.arraycopy(other.types, from, types, size, count);
+    System.arraycopy(other.starts, from, starts, size, count);
+    System.arraycopy(other.lengths, from, lengths, size, count);
+    System.arraycopy(other.lines, from, lines, size, count);
+    // Number tokens point into the pool of the other stream
+    for (int i = size; i < size + count; i++) {
+      if ((types[i] & TYPE_MASK) == NUMBER) {
+        types[i] = numberWord(other.numbers[types[i] >>> TYPE_BITS]);
+      }
+    }
+    if (offsetDelta != 0 || lineDelta != 0) {
+      for (int i = size; i < size + count; i++) {
+        starts[i] += offsetDelta;
+        lines[i] += lineDelta;
+      }
+    }
+    size += count;
+  }
+
+  private void grow(int capacity) {
+    types = Arrays.copyOf(types, capacity);
+    starts = Arrays.copyOf(starts, capacity);
+    lengths = Arrays.copyOf(lengths, capacity);
+    lines = Arrays.copyOf(lines, capacity);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public SymbolTable symbolTable() {
+    return symbols;
+  }
+
+  void setSymbolTable(SymbolTable symbols) {
+    this.symbols = symbols;
+  }
+
+  /**
+   * Returns the scanned characters, or null if the stream was scanned from
+   * UTF-8 bytes.
+   */
+  public char[] source() {
+    return source;
+  }
+
+  public TokenType type(int index) {
+    return TYPES[types[index] & TYPE_MASK];
+  }
+
+  public int typeOrdinal(int index) {
+    return types[index] & TYPE_MASK;
+  }
+
+  public int start(int index) {
+    return starts[index];
+  }
+
+  public int length(int index) {
+    return lengths[index];
+  }
+
+  public int line(int index) {
+    return lines[index];
+  }
+
+  public String lexeme(int index) {
+    int type = types[index] & TYPE_MASK;
+    switch (TYPES[type]) {
+      case IDENTIFIER:
+        return symbols.name(symbol(index));
+      case STRING:
+      case NUMBER:
+        return text(starts[index], lengths[index]);
+      default:
+        // Every other token type always has the same text.
+        String lexeme = fixedLexemes[type];
+        if (lexeme == null) {
+          lexeme = text(starts[index], lengths[index]);
+          if (lengths[index] > 0)
+            fixedLexemes[type] = lexeme;
+        }
+        return lexeme;
+    }
+  }
+
+  public Object literal(int index) {
+    switch (type(index)) {
+      case STRING:
+        int end = starts[index] + lengths[index];
+        if (bytes != null)
+          return Utf8Scanner.unescape(bytes, starts[index], end);
+        return Scanner.unescape(source, starts[index], end);
+      case NUMBER:
+        return number(index);
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Returns the value of a number token without boxing it.
+   */
+  public double number(int index) {
+    return numbers[types[index] >>> TYPE_BITS];
+  }
+
+  /**
+   * Returns the symbol id of an identifier token, interning its name if this
+   * is the first time it is seen. Returns -1 for any other token.
+   */
+  public int symbol(int index) {
+    if (types[index] != TokenType.IDENTIFIER.ordinal())
+      return -1;
+    int end = starts[index] + lengths[index];
+    if (bytes != null)
+      return symbols.intern(bytes, starts[index], end);
+    return symbols.intern(source, starts[index], end);
+  }
+
+  private String text(int start, int length) {
+    if (bytes != null)
+      return Utf8Scanner.text(bytes, start, start + length);
+    return new String(source, start, length);
+  }
+
+  public Token token(int index) {
+    int symbol = symbol(index);
+    if (symbol >= 0)
+      return new Token(TokenType.IDENTIFIER, symbols.name(symbol), null, lines[index], symbol);
+    return new Token(type(index), lexeme(index), literal(index), lines[index]);
+  }
+}
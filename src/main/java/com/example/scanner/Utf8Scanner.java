@@ -0,0 +1,106 @@
+package com.example.scanner;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Scans UTF-8 encoded source bytes without decoding them first. Everything
+ * outside string literals is ASCII, so bytes are read as characters directly;
+ * only string literals are decoded, when their value is needed.
+ */
+public class Utf8Scanner extends AbstractScanner {
+  private final ByteBuffer source;
+
+  public Utf8Scanner(byte[] source) {
+    this(ByteBuffer.wrap(source));
+  }
+
+  /**
+   * Scans the remaining bytes of {@code source}. The buffer may be direct or
+   * memory-mapped; it is never copied.
+   */
+  public Utf8Scanner(ByteBuffer source) {
+    this.source = source.slice();
+    this.limit = this.source.limit();
+  }
+
+  @Override
+  char charAt(int index) {
+    // Bytes of multi-byte sequences map to 0x80-0xFF, which no token starts with.
+    return (char) (source.get(index) & 0xFF);
+  }
+
+  @Override
+  boolean fill() {
+    return false;
+  }
+
+  @Override
+  String text(int start, int end) {
+    return text(source, start, end);
+  }
+
+  @Override
+  String stringValue(int start, int end) {
+    return unescape(source, start, end);
+  }
+
+  @Override
+  TokenStream newTokenStream() {
+    return new TokenStream(source, Math.max(16, limit / 4));
+  }
+
+  @Override
+  int intern(SymbolTable symbols, int start, int end) {
+    return symbols.intern(source, start, end);
+  }
+
+  @Override
+  String characterAt(int index) {
+    return decode(source, index, characterEnd(index));
+  }
+
+  @Override
+  int characterEnd(int index) {
+    int length = 1;
+    int lead = source.get(index) & 0xFF;
+    if (lead >= 0xF0) {
+      length = 4;
+    } else if (lead >= 0xE0) {
+      length = 3;
+    } else if (lead >= 0xC0) {
+      length = 2;
+    }
+    return Math.min(index + length, limit);
+  }
+
+  static String text(ByteBuffer source, int start, int end) {
+    if (source.hasArray()) {
+      return new String(source.array(), source.arrayOffset() + start, end - start, StandardCharsets.UTF_8);
+    }
+    return decode(source, start, end);
+  }
+
+  static String unescape(ByteBuffer source, int start, int end) {
+    byte quote = source.get(start);
+    byte[] value = new byte[end - start - 2];
+    int length = 0;
+    for (int i = start + 1; i < end - 1; i++) {
+      byte b = source.get(i);
+      if (b == '\\' && i + 1 < end - 1 && source.get(i + 1) == quote) {
+        b = quote;
+        i++;
+      }
+      value[length++] = b;
+    }
+    return new String(value, 0, length, StandardCharsets.UTF_8);
+  }
+
+  private static String decode(ByteBuffer source, int start, int end) {
+    byte[] bytes = new byte[end - start];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = source.get(start + i);
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
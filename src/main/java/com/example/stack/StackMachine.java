@@ -1,33 +1,151 @@
 package com.example.stack;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Stack;
-import com.example.code.Operation;
+import com.example.code.FunctionCompiler;
 import com.example.code.Instruction;
+import com.example.code.Program;
 
 public class StackMachine {
   private final Stack<Object> stack = new Stack<>();
   private final Stack<Integer> callStack = new Stack<>();
-  private final Map<String, Object> globals = new HashMap<>();
+  // Names are keyed by identity: every name comes from the program's string
+  // pool, which holds one String per distinct name
+  private final Map<String, Object> globals = new IdentityHashMap<>();
   private final List<Map<String, Object>> scopes = new ArrayList<>();
-  private final Map<String, Integer> functions = new HashMap<>();
-  private final List<Instruction> instructions;
+  private final Map<String, Object> functions = new IdentityHashMap<>();
+  // Resolved variables: the slots of the current call and the globals
+  private Object[] locals = new Object[0];
+  private final Stack<Object[]> frames = new Stack<>();
+  // How many scopes there were at each call, to drop those of the callee
+  private final Stack<Integer> scopeDepths = new Stack<>();
+  private Object[] globalSlots = new Object[16];
+  // The program being run; copied before lazily compiled functions are
+  // appended, unless the machine encoded it itself
+  private Program program;
+  private boolean ownsProgram;
+  // A copy of the program's code, so quickening stays private to this machine
+  private int[] code = new int[0];
+  // The number pool, boxed once
+  private Double[] numbers;
+  // The program proper ends here; lazily compiled functions follow it
+  private final int programEnd;
+  private FunctionCompiler functionCompiler;
+  private final List<LazyFunction> lazyFunctions = new ArrayList<>();
   private int ip = 0;
   private boolean debug = false;
+  private long iterationLimit = -1;
+  // Enough for small programs to loop long enough to be quickened
+  private static final long MIN_ITERATIONS = 1_000_000L;
 
+  // The value of a global that has not been stored yet
+  private static final Object UNDEFINED = new Object();
+
+  // Number forms of generic operations, which the machine writes over them
+  // in its copy of the code once they ran on numbers QUICKEN_THRESHOLD
+  // times in a row. They check their operands and write the generic
+  // operation back if they are not numbers. Never part of a Program.
+  private static final int ADD_QUICK = 100;
+  private static final int SUB_QUICK = 101;
+  private static final int MUL_QUICK = 102;
+  private static final int EQ_QUICK = 103;
+  private static final int NE_QUICK = 104;
+  private static final int LT_QUICK = 105;
+  private static final int GT_QUICK = 106;
+  private static final int LE_QUICK = 107;
+  private static final int GE_QUICK = 108;
+  private static final int QUICKEN_THRESHOLD = 8;
+  // Runs on numbers of each generic operation, by code offset
+  private int[] numberRuns = new int[0];
+  private int quickened = 0;
+
+  /**
+   * A function pushed by PUSHLAZY. Its code is compiled and appended to the
+   * instructions on the first call.
+   */
+  private static class LazyFunction {
+    final int index;
+    // The code offset of its first instruction, once compiled
+    int address = -1;
+
+    LazyFunction(int index) {
+      this.index = index;
+    }
+
+    @Override
+    public String toString() {
+      return "<lazy function " + index + ">";
+    }
+  }
+
+  /**
+   * Code that still has labels is linked first, so jumps and calls go
+   * straight to their target.
+   */
   public StackMachine(List<Instruction> instructions) {
-    this.instructions = instructions;
-    scopes.add(new HashMap<>()); // Global scope
+    this(Program.encode(instructions));
+    ownsProgram = true;
+  }
+
+  /**
+   * {@code program} is left as it is: lazily compiled functions are appended
+   * to a private copy of it.
+   */
+  public StackMachine(Program program) {
+    this.program = program;
+    this.programEnd = program.length();
+    scopes.add(new IdentityHashMap<>()); // Global scope
+    Arrays.fill(globalSlots, UNDEFINED);
+    loadProgram();
+  }
+
+  private void loadProgram() {
+    // Only code appended since the last load is copied, so quickened
+    // instructions stay quickened
+    int copied = code.length;
+    code = Arrays.copyOf(code, program.length());
+    System.arraycopy(program.code(), copied, code, copied, code.length - copied);
+    numberRuns = Arrays.copyOf(numberRuns, code.length);
+    int count = program.numberCount();
+    int loaded = numbers == null ? 0 : numbers.length;
+    numbers = numbers == null ? new Double[count] : Arrays.copyOf(numbers, count);
+    for (int i = loaded; i < count; i++) {
+      numbers[i] = program.number(i);
+    }
   }
 
   public void setDebug(boolean debug) {
     this.debug = debug;
   }
 
+  /**
+   * Sets how many instructions {@link #execute()} runs before it gives up
+   * on a possible infinite loop. By default that is a million, or twice the
+   * number of instructions if that is more.
+   */
+  public void setMaxIterations(long maxIterations) {
+    this.iterationLimit = maxIterations;
+  }
+
+  /**
+   * Returns how many instructions are quickened now.
+   */
+  public int getQuickenedCount() {
+    return quickened;
+  }
+
+  /**
+   * Sets what compiles the functions of PUSHLAZY instructions.
+   */
+  public void setFunctionCompiler(FunctionCompiler functionCompiler) {
+    this.functionCompiler = functionCompiler;
+  }
+
   private void debugPrint(String message) {
     if (debug) {
       System.out.println("[DEBUG] " + message);
@@ -37,21 +155,22 @@ public class StackMachine {
 
   public Object execute() {
     Object lastValue = null;
-    int maxIterations = instructions.size() * 2; // Prevent infinite loops
-    int iterationCount = 0;
+    // Prevent infinite loops
+    long maxIterations = Math.max(MIN_ITERATIONS, program.size() * 2L);
+    long iterationCount = 0;
 
-    while (ip < instructions.size() && iterationCount < maxIterations) {
-      Instruction instruction = instructions.get(ip);
+    while (isRunning() && iterationCount < maxIterations) {
+      // Lazily compiled functions grow the program
+      maxIterations = iterationLimit >= 0 ? iterationLimit : Math.max(maxIterations, program.size() * 2L);
       if (debug) {
-        System.out.println("\nExecuting instruction at IP=" + ip + ": " + instruction);
+        System.out.println("\nExecuting instruction at IP=" + ip + ": " + program.instructionAt(ip));
       }
-      executeInstruction(instruction);
+      executeInstruction(code[ip++]);
 
       if (!stack.isEmpty()) {
         lastValue = stack.peek();
       }
 
-      ip++;
       iterationCount++;
     }
 
@@ -62,27 +181,55 @@ public class StackMachine {
     return lastValue;
   }
 
+  private boolean isRunning() {
+    // Outside of a call, stop before the appended function code
+    return ip < (callStack.isEmpty() ? programEnd : program.length());
+  }
+
   private void ensureStackSize(int required) {
     if (stack.size() < required) {
       throw new RuntimeException("Stack underflow: required " + required + " elements but got " + stack.size());
     }
   }
 
-  private void executeInstruction(Instruction instruction) {
-    debugPrint("Before executing " + instruction);
+  /**
+   * Executes an instruction; ip is already past its opcode, and instructions
+   * with an operand read it from there.
+   */
+  private void executeInstruction(int opcode) {
+    if (debug) {
+      debugPrint("Before executing " + program.instructionAt(ip - 1));
+    }
 
-    switch (instruction.operation) {
+    switch (opcode) {
       // Stack operations
-      case PUSH:
-        stack.push(instruction.operand);
+      case Program.PUSH_NUMBER:
+        stack.push(numbers[code[ip++]]);
+        break;
+      case Program.PUSH_STRING:
+        stack.push(program.string(code[ip++]));
         break;
-      case POP:
+      case Program.PUSH_TRUE:
+        stack.push(Boolean.TRUE);
+        break;
+      case Program.PUSH_FALSE:
+        stack.push(Boolean.FALSE);
+        break;
+      case Program.PUSH_NIL:
+        stack.push(null);
+        break;
+      case Program.POP:
         stack.pop();
         break;
+      case Program.DUP:
+        ensureStackSize(1);
+        stack.push(stack.peek());
+        break;
 
       // Arithmetic operations
-      case ADD: {
+      case Program.ADD: {
         ensureStackSize(2);
+        quicken(ADD_QUICK);
         debugPrint("Before ADD operation");
         Double addend = ((Number) stack.pop()).doubleValue();
         Double augend = ((Number) stack.pop()).doubleValue();
@@ -91,21 +238,23 @@ public class StackMachine {
         stack.push(result);
         break;
       }
-      case SUB: {
+      case Program.SUB: {
         ensureStackSize(2);
+        quicken(SUB_QUICK);
         Double b = ((Number) stack.pop()).doubleValue();
         Double a = ((Number) stack.pop()).doubleValue();
         stack.push(a - b);
         break;
       }
-      case MUL: {
+      case Program.MUL: {
         ensureStackSize(2);
+        quicken(MUL_QUICK);
         Double b = ((Number) stack.pop()).doubleValue();
         Double a = ((Number) stack.pop()).doubleValue();
         stack.push(a * b);
         break;
       }
-      case DIV: {
+      case Program.DIV: {
         ensureStackSize(2);
         Double b = ((Number) stack.pop()).doubleValue();
         Double a = ((Number) stack.pop()).doubleValue();
@@ -114,7 +263,7 @@ public class StackMachine {
         stack.push(a / b);
         break;
       }
-      case MOD: {
+      case Program.MOD: {
         ensureStackSize(2);
         Double b = ((Number) stack.pop()).doubleValue();
         Double a = ((Number) stack.pop()).doubleValue();
@@ -123,48 +272,197 @@ public class StackMachine {
         stack.push(a % b);
         break;
       }
-      case NEG: {
+      case Program.NEG: {
         ensureStackSize(1);
         Double a = ((Number) stack.pop()).doubleValue();
         stack.push(-a);
         break;
       }
 
+      // Operations on values the compiler proved to be numbers
+      case Program.ADD_NUM: {
+        double b = (Double) stack.pop();
+        double a = (Double) stack.pop();
+        stack.push(a + b);
+        break;
+      }
+      case Program.SUB_NUM: {
+        double b = (Double) stack.pop();
+        double a = (Double) stack.pop();
+        stack.push(a - b);
+        break;
+      }
+      case Program.MUL_NUM: {
+        double b = (Double) stack.pop();
+        double a = (Double) stack.pop();
+        stack.push(a * b);
+        break;
+      }
+      case Program.LT_NUM: {
+        double b = (Double) stack.pop();
+        double a = (Double) stack.pop();
+        stack.push(a < b);
+        break;
+      }
+      case Program.GT_NUM: {
+        double b = (Double) stack.pop();
+        double a = (Double) stack.pop();
+        stack.push(a > b);
+        break;
+      }
+      case Program.LE_NUM: {
+        double b = (Double) stack.pop();
+        double a = (Double) stack.pop();
+        stack.push(a <= b);
+        break;
+      }
+      case Program.GE_NUM: {
+        double b = (Double) stack.pop();
+        double a = (Double) stack.pop();
+        stack.push(a >= b);
+        break;
+      }
+
+      // Quickened operations
+      case ADD_QUICK: {
+        Object b = stack.pop();
+        Object a = stack.pop();
+        if (a instanceof Double && b instanceof Double) {
+          stack.push((Double) a + (Double) b);
+        } else {
+          dequicken(Program.ADD, a, b);
+        }
+        break;
+      }
+      case SUB_QUICK: {
+        Object b = stack.pop();
+        Object a = stack.pop();
+        if (a instanceof Double && b instanceof Double) {
+          stack.push((Double) a - (Double) b);
+        } else {
+          dequicken(Program.SUB, a, b);
+        }
+        break;
+      }
+      case MUL_QUICK: {
+        Object b = stack.pop();
+        Object a = stack.pop();
+        if (a instanceof Double && b instanceof Double) {
+          stack.push((Double) a * (Double) b);
+        } else {
+          dequicken(Program.MUL, a, b);
+        }
+        break;
+      }
+      case LT_QUICK: {
+        Object b = stack.pop();
+        Object a = stack.pop();
+        if (a instanceof Double && b instanceof Double) {
+          stack.push((Double) a < (Double) b);
+        } else {
+          dequicken(Program.LT, a, b);
+        }
+        break;
+      }
+      case GT_QUICK: {
+        Object b = stack.pop();
+        Object a = stack.pop();
+        if (a instanceof Double && b instanceof Double) {
+          stack.push((Double) a > (Double) b);
+        } else {
+          dequicken(Program.GT, a, b);
+        }
+        break;
+      }
+      case LE_QUICK: {
+        Object b = stack.pop();
+        Object a = stack.pop();
+        if (a instanceof Double && b instanceof Double) {
+          stack.push((Double) a <= (Double) b);
+        } else {
+          dequicken(Program.LE, a, b);
+        }
+        break;
+      }
+      case GE_QUICK: {
+        Object b = stack.pop();
+        Object a = stack.pop();
+        if (a instanceof Double && b instanceof Double) {
+          stack.push((Double) a >= (Double) b);
+        } else {
+          dequicken(Program.GE, a, b);
+        }
+        break;
+      }
+      case EQ_QUICK: {
+        Object b = stack.pop();
+        Object a = stack.pop();
+        if (a instanceof Double && b instanceof Double) {
+          stack.push(Double.compare((Double) a, (Double) b) == 0);
+        } else {
+          dequicken(Program.EQ, a, b);
+        }
+        break;
+      }
+      case NE_QUICK: {
+        Object b = stack.pop();
+        Object a = stack.pop();
+        if (a instanceof Double && b instanceof Double) {
+          stack.push(Double.compare((Double) a, (Double) b) != 0);
+        } else {
+          dequicken(Program.NE, a, b);
+        }
+        break;
+      }
+
       // Logical operations
-      case NOT:
+      case Program.NOT:
         ensureStackSize(1);
         stack.push(!isTruthy(stack.pop()));
         break;
-      case EQ: {
+      case Program.EQ: {
         ensureStackSize(2);
+        quicken(EQ_QUICK);
         Object b = stack.pop();
         Object a = stack.pop();
         stack.push(Objects.equals(a, b));
         break;
       }
-      case LT: {
+      case Program.NE: {
+        ensureStackSize(2);
+        quicken(NE_QUICK);
+        Object b = stack.pop();
+        Object a = stack.pop();
+        stack.push(!Objects.equals(a, b));
+        break;
+      }
+      case Program.LT: {
         ensureStackSize(2);
+        quicken(LT_QUICK);
         Double b = ((Number) stack.pop()).doubleValue();
         Double a = ((Number) stack.pop()).doubleValue();
         stack.push(a < b);
         break;
       }
-      case GT: {
+      case Program.GT: {
         ensureStackSize(2);
+        quicken(GT_QUICK);
         Double b = ((Number) stack.pop()).doubleValue();
         Double a = ((Number) stack.pop()).doubleValue();
         stack.push(a > b);
         break;
       }
-      case LE: {
+      case Program.LE: {
         ensureStackSize(2);
+        quicken(LE_QUICK);
         Double b = ((Number) stack.pop()).doubleValue();
         Double a = ((Number) stack.pop()).doubleValue();
         stack.push(a <= b);
         break;
       }
-      case GE: {
+      case Program.GE: {
         ensureStackSize(2);
+        quicken(GE_QUICK);
         Double b = ((Number) stack.pop()).doubleValue();
         Double a = ((Number) stack.pop()).doubleValue();
         stack.push(a >= b);
@@ -172,83 +470,160 @@ public class StackMachine {
       }
 
       // Variable operations
-      case LOAD: {
-        String name = instruction.getStringOperand();
+      case Program.LOAD: {
+        String name = program.string(code[ip++]);
         Object value = lookupVariable(name);
         stack.push(value);
         break;
       }
-      case STORE: {
+      case Program.STORE: {
         ensureStackSize(1);
-        String name = instruction.getStringOperand();
+        String name = program.string(code[ip++]);
         Object value = stack.pop();
         storeVariable(name, value);
         debugPrint("STORE " + name + " = " + value);
         break;
       }
-
-      // Control flow
-      case JMP: {
-        // TODO: This is really fixy
-        int labelTarget = instruction.getLabelOperand();
-        boolean found = false;
-        for (int j = 0; j < instructions.size(); j++) {
-          Instruction inst = instructions.get(j);
-          if (inst.operation == Operation.LABEL && inst.getLabelOperand() == labelTarget) {
-            ip = j;
-            found = true;
-            break;
-          }
+      case Program.ASSIGN: {
+        ensureStackSize(1);
+        assignVariable(program.string(code[ip++]), stack.pop());
+        break;
+      }
+      case Program.LOAD_LOCAL:
+        stack.push(locals[code[ip++]]);
+        break;
+      case Program.STORE_LOCAL:
+        ensureStackSize(1);
+        locals[code[ip++]] = stack.pop();
+        break;
+      case Program.LOAD_GLOBAL: {
+        int index = code[ip++];
+        Object value = index < globalSlots.length ? globalSlots[index] : UNDEFINED;
+        if (value == UNDEFINED) {
+          throw new RuntimeException("Undefined global variable " + index + ".");
         }
-        if (!found) {
-          throw new RuntimeException("Label " + labelTarget + " not found");
+        stack.push(value);
+        break;
+      }
+      case Program.STORE_GLOBAL: {
+        ensureStackSize(1);
+        int index = code[ip++];
+        if (index >= globalSlots.length) {
+          int size = globalSlots.length;
+          globalSlots = Arrays.copyOf(globalSlots, Math.max(size * 2, index + 1));
+          Arrays.fill(globalSlots, size, globalSlots.length, UNDEFINED);
         }
+        globalSlots[index] = stack.pop();
         break;
       }
-      case JMPF: {
+
+      // Control flow; jump and call targets are code offsets
+      case Program.JMP:
+        ip = code[ip];
+        break;
+      case Program.JMPF: {
         ensureStackSize(1);
+        int target = code[ip++];
         if (!isTruthy(stack.pop())) {
-          ip = instruction.getLabelOperand() - 1;
+          ip = target;
         }
         break;
       }
-      case LABEL:
+      case Program.JMPF_KEEP:
+      case Program.JMPT_KEEP: {
+        // Short-circuits && and ||: the deciding operand stays as the result
+        ensureStackSize(1);
+        int target = code[ip++];
+        if (isTruthy(stack.peek()) == (opcode == Program.JMPT_KEEP)) {
+          ip = target;
+        } else {
+          stack.pop();
+        }
         break;
+      }
+
+      // Superinstructions, each doing the work of a common sequence
+      case Program.JNLT_LOCAL_CONST: {
+        int target = code[ip];
+        double a = ((Number) locals[code[ip + 1]]).doubleValue();
+        ip = a < numbers[code[ip + 2]] ? ip + 3 : target;
+        break;
+      }
+      case Program.JNLT_LOCAL_LOCAL: {
+        int target = code[ip];
+        double a = ((Number) locals[code[ip + 1]]).doubleValue();
+        double b = ((Number) locals[code[ip + 2]]).doubleValue();
+        ip = a < b ? ip + 3 : target;
+        break;
+      }
+      case Program.LOAD_LOAD_ADD: {
+        double a = ((Number) locals[code[ip++]]).doubleValue();
+        double b = ((Number) locals[code[ip++]]).doubleValue();
+        stack.push(a + b);
+        break;
+      }
+      case Program.INC_LOCAL: {
+        int slot = code[ip++];
+        locals[slot] = ((Number) locals[slot]).doubleValue() + numbers[code[ip++]];
+        break;
+      }
 
       // Function operations
-      case CALL: {
+      case Program.CALL: {
+        ip++; // The argument count
         ensureStackSize(1);
         Object callee = stack.pop();
-        if (!(callee instanceof Integer)) {
+        int address;
+        if (callee instanceof LazyFunction) {
+          address = address((LazyFunction) callee);
+        } else if (callee instanceof Integer) {
+          address = (Integer) callee;
+        } else {
           throw new RuntimeException("Can only call functions");
         }
         callStack.push(ip);
-        ip = (Integer) callee;
+        frames.push(locals);
+        scopeDepths.push(scopes.size());
+        ip = address;
         break;
       }
-      case RET: {
+      case Program.RET: {
         if (callStack.isEmpty()) {
           throw new RuntimeException("Return without a call");
         }
         ip = callStack.pop();
+        locals = frames.pop();
+        int depth = scopeDepths.pop();
+        while (scopes.size() > depth) {
+          scopes.remove(scopes.size() - 1);
+        }
         break;
       }
-      case PUSHFUN:
-        stack.push(instruction.operand);
+      case Program.ENTER:
+        locals = new Object[code[ip++]];
+        break;
+      case Program.PUSHFUN:
+        stack.push(program.function(code[ip++]));
+        break;
+      case Program.PUSHLAZY:
+        stack.push(lazyFunction(code[ip++]));
         break;
-      case STOREFUN: {
-        String name = instruction.getStringOperand();
+      case Program.STOREFUN: {
+        String name = program.string(code[ip++]);
         ensureStackSize(1);
-        Integer address = (Integer) stack.pop();
-        functions.put(name, address);
+        Object function = stack.pop();
+        if (!(function instanceof Integer) && !(function instanceof LazyFunction)) {
+          throw new RuntimeException("Can only store functions");
+        }
+        functions.put(name, function);
         break;
       }
 
       // Scope operations
-      case BEGINSCOPE:
-        scopes.add(new HashMap<>());
+      case Program.BEGINSCOPE:
+        scopes.add(new IdentityHashMap<>());
         break;
-      case ENDSCOPE:
+      case Program.ENDSCOPE:
         if (scopes.size() <= 1) {
           throw new RuntimeException("Cannot end global scope");
         }
@@ -256,10 +631,68 @@ public class StackMachine {
         break;
 
       default:
-        throw new RuntimeException("Unknown operation: " + instruction.operation);
+        throw new RuntimeException("Unknown operation: " + program.instructionAt(ip - 1));
     }
   }
 
+  /**
+   * Counts a run of the generic operation just dispatched on the two values
+   * on top of the stack, and writes {@code quick} over it after enough runs
+   * in a row on numbers.
+   */
+  private void quicken(int quick) {
+    int offset = ip - 1;
+    if (stack.peek() instanceof Double && stack.get(stack.size() - 2) instanceof Double) {
+      if (++numberRuns[offset] >= QUICKEN_THRESHOLD) {
+        code[offset] = quick;
+        quickened++;
+      }
+    } else {
+      numberRuns[offset] = 0;
+    }
+  }
+
+  /**
+   * Writes the generic operation back over a quickened one whose operands
+   * {@code a} and {@code b} are not both numbers, and puts them back so the
+   * generic operation runs on them next.
+   */
+  private void dequicken(int generic, Object a, Object b) {
+    ip--;
+    code[ip] = generic;
+    numberRuns[ip] = 0;
+    quickened--;
+    stack.push(a);
+    stack.push(b);
+  }
+
+  private LazyFunction lazyFunction(int index) {
+    while (lazyFunctions.size() <= index) {
+      lazyFunctions.add(new LazyFunction(lazyFunctions.size()));
+    }
+    return lazyFunctions.get(index);
+  }
+
+  /**
+   * Returns the code offset of a lazy function, compiling it and appending
+   * it to the machine's copy of the program first if this is its first call.
+   */
+  private int address(LazyFunction function) {
+    if (function.address < 0) {
+      if (functionCompiler == null) {
+        throw new RuntimeException("No compiler for lazy function " + function.index);
+      }
+      if (!ownsProgram) {
+        program = program.copy();
+        ownsProgram = true;
+      }
+      function.address = program.append(functionCompiler.compileFunction(function.index));
+      loadProgram();
+      debugPrint("Compiled lazy function " + function.index + " at " + function.address);
+    }
+    return function.address;
+  }
+
   private boolean isTruthy(Object object) {
     if (object == null)
       return false;
@@ -298,6 +731,22 @@ public class StackMachine {
     globalScope.put(name, value);
   }
 
+  /**
+   * Updates the innermost scope that has {@code name}, as an assignment to
+   * a variable declared further out does. A name no scope has yet is
+   * stored as STORE would.
+   */
+  private void assignVariable(String name, Object value) {
+    for (int i = scopes.size() - 1; i >= 0; i--) {
+      Map<String, Object> scope = scopes.get(i);
+      if (scope.containsKey(name)) {
+        scope.put(name, value);
+        return;
+      }
+    }
+    storeVariable(name, value);
+  }
+
   public void dumpStack() {
     System.out.println("Stack: " + stack);
     System.out.println("Call Stack: " + callStack);
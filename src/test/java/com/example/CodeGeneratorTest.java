@@ -108,6 +108,238 @@ public class CodeGeneratorTest {
     assertTrue("Should contain JMP instruction", hasJmp);
   }
 
+  @Test
+  public void testConstantFolding() {
+    List<Statement> statements = new Parser(new Scanner(
+        "const k = 2 * 3; let x = (k + 1) % 4; let y = x < k || -k; let z = 1 / 0; { let k = 1; z = k; }")
+        .scanTokens()).parse();
+    ConstantFolder constants = new ConstantFolder();
+    constants.fold(statements);
+    generator.setConstantFolder(constants);
+    List<Instruction> instructions = generator.generateCode(statements);
+    printInstructions(instructions);
+
+    assertEquals("PUSH 6.0 (NUMBER)", instructions.get(0).toString());
+    assertEquals("STORE k (STRING)", instructions.get(1).toString());
+    assertEquals("PUSH 3.0 (NUMBER)", instructions.get(2).toString());
+    // x is not const, so the comparison is left to run time
+    assertEquals("LOAD x (STRING)", instructions.get(4).toString());
+    assertEquals("PUSH 6.0 (NUMBER)", instructions.get(5).toString());
+    assertEquals(Operation.LT, instructions.get(6).operation);
+    assertEquals(Operation.JMPT_KEEP, instructions.get(7).operation);
+    assertEquals("PUSH -6.0 (NUMBER)", instructions.get(8).toString());
+    // Division by zero still fails at run time
+    assertEquals(Operation.DIV, instructions.get(13).operation);
+    // The block's k is a different variable
+    assertEquals("LOAD k (STRING)", instructions.get(18).toString());
+  }
+
+  @Test(expected = ParseError.class)
+  public void testAssignToConstIsRejected() {
+    new ConstantFolder().fold(new Parser(new Scanner("const k = 1; k = 2;").scanTokens()).parse());
+  }
+
+  @Test
+  public void testResolvedVariables() {
+    Parser parser = new Parser(new Scanner(
+        "let x = 1; function f(a) { let b = a; return b + x; } { let y = x; }").scanTokens());
+    List<Statement> statements = parser.parse();
+    Resolver resolver = new Resolver();
+    resolver.resolve(statements);
+    generator.setResolver(resolver);
+    List<Instruction> instructions = generator.generateCode(statements);
+    printInstructions(instructions);
+
+    boolean hasLoadLocal = false;
+    boolean hasLoadGlobal = false;
+    for (Instruction inst : instructions) {
+      assertNotEquals(Operation.LOAD, inst.operation);
+      assertNotEquals(Operation.STORE, inst.operation);
+      assertNotEquals(Operation.BEGINSCOPE, inst.operation);
+      if (inst.operation == Operation.LOAD_LOCAL)
+        hasLoadLocal = true;
+      if (inst.operation == Operation.LOAD_GLOBAL)
+        hasLoadGlobal = true;
+    }
+    assertTrue("Should contain LOAD_LOCAL instruction", hasLoadLocal);
+    assertTrue("Should contain LOAD_GLOBAL instruction", hasLoadGlobal);
+    // The top-level block needs one slot for y
+    assertEquals(Operation.ENTER, instructions.get(0).operation);
+    assertEquals(1, instructions.get(0).getIntOperand());
+    assertEquals(2, resolver.frameSize((Statement.Function) statements.get(1)));
+  }
+
+  @Test
+  public void testResolvedLoopRuns() {
+    Parser parser = new Parser(new Scanner(
+        "let sum = 0; { let i = 0; while (i < 100) { sum = sum + i; i = i + 1; } } sum;").scanTokens());
+    List<Statement> statements = parser.parse();
+    Resolver resolver = new Resolver();
+    resolver.resolve(statements);
+    generator.setResolver(resolver);
+
+    StackMachine machine = new StackMachine(generator.generateCode(statements));
+    machine.setMaxIterations(100000);
+    assertEquals(4950.0, machine.execute());
+  }
+
+  @Test
+  public void testPeepholeOptimizer() {
+    List<Statement> statements = new Parser(new Scanner(
+        "{ let x = 0; x = 1; let y = x = 2; y != x; }").scanTokens()).parse();
+    Resolver resolver = new Resolver();
+    resolver.resolve(statements);
+    generator.setResolver(resolver);
+    PeepholeOptimizer optimizer = new PeepholeOptimizer();
+    List<Instruction> instructions = optimizer.optimize(generator.generateCode(statements));
+    printInstructions(instructions);
+
+    // x = 1; keeps only the store
+    assertEquals("PUSH 1.0 (NUMBER)", instructions.get(3).toString());
+    assertEquals(Operation.STORE_LOCAL, instructions.get(4).operation);
+    // let y = x = 2; duplicates the value instead of loading it again, and
+    // so does y's initializer for the following y
+    assertEquals(Operation.DUP, instructions.get(6).operation);
+    assertEquals(Operation.STORE_LOCAL, instructions.get(7).operation);
+    assertEquals(Operation.DUP, instructions.get(8).operation);
+    assertEquals(Operation.NE, instructions.get(11).operation);
+
+    assertEquals(1, optimizer.getApplied(PeepholeOptimizer.Rule.STORE_LOAD_POP));
+    assertEquals(2, optimizer.getRemoved(PeepholeOptimizer.Rule.STORE_LOAD_POP));
+    assertEquals(2, optimizer.getApplied(PeepholeOptimizer.Rule.STORE_LOAD));
+    assertEquals(0, optimizer.getRemoved(PeepholeOptimizer.Rule.STORE_LOAD));
+    assertEquals(1, optimizer.getRemoved(PeepholeOptimizer.Rule.EQ_NOT));
+  }
+
+  @Test
+  public void testSuperinstructions() {
+    Parser parser = new Parser(new Scanner(
+        "let sum = 0; { let i = 0; let n = 100; let s = 0; while (i < n) { s = s + i; i = i + 1; } "
+            + "while (i < 200) i = i + 2; sum = s + i; } sum;").scanTokens());
+    List<Statement> statements = parser.parse();
+    Resolver resolver = new Resolver();
+    resolver.resolve(statements);
+    generator.setResolver(resolver);
+    SuperinstructionSelector selector = new SuperinstructionSelector();
+    List<Instruction> instructions = selector.select(
+        new PeepholeOptimizer().optimize(generator.generateCode(statements)));
+    printInstructions(instructions);
+
+    assertEquals(1, selector.getSelected(Operation.JNLT_LOCAL_LOCAL));
+    assertEquals(1, selector.getSelected(Operation.JNLT_LOCAL_CONST));
+    assertEquals(2, selector.getSelected(Operation.LOAD_LOAD_ADD));
+    assertEquals(2, selector.getSelected(Operation.INC_LOCAL));
+    for (Instruction inst : instructions) {
+      assertNotEquals(Operation.LT, inst.operation);
+    }
+
+    StackMachine machine = new StackMachine(instructions);
+    machine.setMaxIterations(100000);
+    assertEquals(5150.0, machine.execute());
+  }
+
+  @Test
+  public void testNumberOperations() {
+    Parser parser = new Parser(new Scanner(
+        "let r = 0; { let a = 2; let b = a * 3; let c = \"x\"; let d = a; d = c; "
+            + "let e = (a + b < 9) == (d == c); r = b - a + r; }").scanTokens());
+    List<Statement> statements = parser.parse();
+    TypeInference types = new TypeInference();
+    types.infer(statements);
+    Resolver resolver = new Resolver();
+    resolver.resolve(statements);
+    generator.setTypeInference(types);
+    generator.setResolver(resolver);
+    List<Instruction> instructions = generator.generateCode(statements);
+    printInstructions(instructions);
+
+    // a and b only ever hold numbers; d also holds a string, and r is a
+    // global
+    assertEquals(Operation.MUL_NUM, instructions.get(7).operation);
+    assertEquals(Operation.ADD_NUM, instructions.get(19).operation);
+    assertEquals(Operation.LT_NUM, instructions.get(21).operation);
+    assertEquals(Operation.EQ, instructions.get(24).operation);
+    assertEquals(Operation.SUB_NUM, instructions.get(29).operation);
+    assertEquals(Operation.ADD, instructions.get(31).operation);
+    assertEquals(TypeInference.Type.UNKNOWN,
+        types.type(((Statement.Var) ((Statement.Block) statements.get(1)).statements.get(2)).initializer));
+
+    StackMachine machine = new StackMachine(instructions);
+    assertEquals(4.0, machine.execute());
+  }
+
+  @Test
+  public void testNestedStoresWidenTypes() {
+    String source = "{ let x = 1; let y = 2; function g() { x = \"s\"; } g(); x + 1; y + 1; }";
+    assertEquals("Only y stays a number", 1, countNumberAdds(source, false));
+    assertEquals("A lazy function may store into x and y", 0, countNumberAdds(source, true));
+  }
+
+  private int countNumberAdds(String source, boolean lazyFunctions) {
+    Parser parser = new Parser(new Scanner(source).scanTokenStream());
+    parser.setLazyFunctions(lazyFunctions);
+    List<Statement> statements = parser.parse();
+    TypeInference types = new TypeInference();
+    types.infer(statements);
+    CodeGenerator generator = new CodeGenerator();
+    generator.setTypeInference(types);
+    int count = 0;
+    for (Instruction instruction : generator.generateCode(statements)) {
+      if (instruction.operation == Operation.ADD_NUM) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Test
+  public void testLinkResolvesLabels() {
+    String source = "while (x < 10) { x = x + 1; }";
+    List<Instruction> linked = Linker.link(generateCode(source));
+    printInstructions(linked);
+
+    // LABEL 0, LOAD x, PUSH 10, LT, JMPF 1, ..., JMP 0, LABEL 1
+    assertEquals(Operation.LOAD, linked.get(0).operation);
+    Instruction exit = linked.get(3);
+    assertEquals(Operation.JMPF, exit.operation);
+    assertEquals(linked.size(), exit.getLabelOperand());
+    Instruction loop = linked.get(linked.size() - 1);
+    assertEquals(Operation.JMP, loop.operation);
+    assertEquals(0, loop.getLabelOperand());
+    for (Instruction inst : linked) {
+      assertNotEquals(Operation.LABEL, inst.operation);
+    }
+    assertSame(linked, Linker.link(linked));
+  }
+
+  @Test
+  public void testProgramEncoding() {
+    Program program = Program.encode(generateCode("let x = 2; if (x > 2) x = 2; else x = \"two\";"));
+    System.out.print(program);
+
+    // Constants are pooled once per value
+    assertEquals(1, program.numberCount());
+    assertEquals(2.0, program.number(0), 0.0);
+    assertEquals(2, program.stringCount());
+    assertEquals("x", program.string(0));
+
+    int[] code = program.code();
+    assertEquals(Program.PUSH_NUMBER, code[0]);
+    assertEquals(0, code[1]);
+    assertEquals(Program.STORE, code[2]);
+    // The JMPF after LOAD x, PUSH 2, GT jumps into the code
+    assertEquals(Program.JMPF, code[9]);
+    assertEquals("PUSH two", program.instructionAt(code[10]));
+    assertEquals(program.length(), code[code[10] - 1]);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testLinkRejectsMissingLabel() {
+    Linker.link(java.util.Arrays.asList(
+        new Instruction(Operation.JMP, 1),
+        new Instruction(Operation.LABEL, 0)));
+  }
+
   @Test
   public void testFunctionDefinition() {
     String source = "function add(a, b) { return a + b; }";
@@ -140,7 +372,7 @@ public class CodeGeneratorTest {
     assertEquals(Operation.LOAD, instructions.get(2).operation);
     assertEquals(Operation.PUSH, instructions.get(3).operation);
     assertEquals(Operation.ADD, instructions.get(4).operation);
-    assertEquals(Operation.STORE, instructions.get(5).operation);
+    assertEquals(Operation.ASSIGN, instructions.get(5).operation);
   }
 
   @Test
@@ -162,8 +394,12 @@ public class CodeGeneratorTest {
 
     assertEquals(Operation.PUSH, instructions.get(0).operation);
     assertEquals(true, instructions.get(0).operand);
-    assertEquals(Operation.PUSH, instructions.get(1).operation);
-    assertEquals(false, instructions.get(1).operand);
+    // A false left operand skips the right one and is the result
+    assertEquals(Operation.JMPF_KEEP, instructions.get(1).operation);
+    assertEquals(Operation.PUSH, instructions.get(2).operation);
+    assertEquals(false, instructions.get(2).operand);
+    assertEquals(Operation.LABEL, instructions.get(3).operation);
+    assertEquals(instructions.get(1).operand, instructions.get(3).operand);
   }
 
   @Test
@@ -183,4 +419,18 @@ public class CodeGeneratorTest {
     assertTrue("Should contain BEGINSCOPE instruction", hasBeginScope);
     assertTrue("Should contain ENDSCOPE instruction", hasEndScope);
   }
+
+  @Test(timeout = 30000)
+  public void testDeeplyNestedExpression() {
+    int depth = 1_000_000;
+    String source = ParserTest.nestedSum(depth);
+    List<Instruction> instructions = generator.generateCode(
+        new Parser(new Scanner(source).scanTokenStream()).parse());
+
+    // a, a, ..., 1, then one ADD per level and the POP of the statement
+    assertEquals(2 * depth + 2, instructions.size());
+    assertEquals(Operation.LOAD, instructions.get(depth - 1).operation);
+    assertEquals(1.0, instructions.get(depth).operand);
+    assertEquals(Operation.ADD, instructions.get(2 * depth).operation);
+  }
 }
@@ -3,6 +3,24 @@ package com.example;
 import org.junit.Test;
 import org.junit.Before;
 import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import com.example.code.Operation;
+import com.example.code.PeepholeOptimizer;
+import com.example.code.Program;
+import com.example.code.ProgramLoader;
+import com.example.code.ProgramWriter;
+import com.example.code.SuperinstructionSelector;
+import com.example.scanner.Diagnostics;
+import com.example.stack.StackMachine;
 import com.example.compiler.*;
 
 public class CompilerTest {
@@ -76,4 +94,271 @@ public class CompilerTest {
     assertEquals("Multiple statements should work", 8.0,
         ((Number) result).doubleValue(), 0.001);
   }
+
+  @Test(timeout = 2000)
+  public void testIfElse() {
+    Object result = compiler.execute(
+        "let x = 0; if (x > 1) x = 5; else x = 7; x;");
+    assertEquals("Else branch should run", 7.0,
+        ((Number) result).doubleValue(), 0.001);
+  }
+
+  @Test(timeout = 2000)
+  public void testLogicalOperatorsShortCircuit() {
+    Object result = compiler.execute(
+        "let n = 0; function bump() { n = n + 1; return true; } " +
+            "let a = false && bump(); let b = true || bump(); let e = true && bump(); " +
+            "let c = null || 3; let d = 2 && c; n * 100 + d;");
+    assertEquals("Only the undecided call should run", 103.0,
+        ((Number) result).doubleValue(), 0.001);
+  }
+
+  @Test(timeout = 2000)
+  public void testAssignmentInBlockUpdatesOuterLocal() {
+    Object result = compiler.execute(
+        "function f(a) { let b = a * 2; { let c = b + 1; b = c; } return b; } " +
+            "f(3);");
+    assertEquals("Assignment should update the enclosing variable", 7.0,
+        ((Number) result).doubleValue(), 0.001);
+  }
+
+  @Test(timeout = 2000)
+  public void testConstantsAreFolded() {
+    Program program = compiler.compile("const rate = 3; const total = rate * 4 + 1; total;");
+    assertEquals("PUSH 13.0", program.instructionAt(4));
+    assertEquals(13.0, ((Number) compiler.execute(program)).doubleValue(), 0.001);
+  }
+
+  @Test(timeout = 2000)
+  public void testOptimizedCodeRuns() {
+    Object result = compiler.execute(
+        "function f(n) { let a = 0; if (n != a) { a = n + 1; } return a; let dead = 1; } let b = f(3); b = b * 2; b;");
+    assertEquals(8.0, ((Number) result).doubleValue(), 0.001);
+    assertEquals(1, compiler.getPeepholeOptimizer().getApplied(PeepholeOptimizer.Rule.EQ_NOT));
+    assertTrue(compiler.getPeepholeOptimizer().getRemoved(PeepholeOptimizer.Rule.UNREACHABLE) > 0);
+  }
+
+  @Test(timeout = 2000)
+  public void testSuperinstructionsSurviveProgramFile() throws IOException {
+    Program program = compiler.compile(
+        "function sum(n) { let s = 0; let i = 0; while (i < n) { s = s + i; i = i + 1; } return s + i; } sum(3);");
+    assertTrue(program.toString().contains("JNLT_LOCAL_LOCAL"));
+    assertEquals(1, compiler.getSuperinstructionSelector().getSelected(Operation.INC_LOCAL));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ProgramWriter.write(program, out);
+    Program loaded = ProgramLoader.load(ByteBuffer.wrap(out.toByteArray()));
+    assertEquals(program.toString(), loaded.toString());
+    assertEquals(6.0, ((Number) compiler.execute(loaded)).doubleValue(), 0.001);
+  }
+
+  @Test(timeout = 2000)
+  public void testSuperinstructionsInLongLoop() {
+    String source = "function sum(n) { let s = 0; let i = 0; " +
+        "while (i < n) { s = s + i; i = i + 1; } return s; } sum(100000);";
+    Object result = compiler.execute(source);
+    SuperinstructionSelector selector = compiler.getSuperinstructionSelector();
+    assertEquals(1, selector.getSelected(Operation.JNLT_LOCAL_LOCAL));
+    assertEquals(1, selector.getSelected(Operation.LOAD_LOAD_ADD));
+    assertEquals(1, selector.getSelected(Operation.INC_LOCAL));
+    assertEquals(4999950000.0, ((Number) result).doubleValue(), 0.001);
+
+    Compiler plain = new Compiler();
+    plain.setSuperinstructionSelector(null);
+    assertEquals("Superinstructions should not change the result", result, plain.execute(source));
+  }
+
+  @Test(timeout = 2000)
+  public void testExecuteFromReader() {
+    Object result = compiler.execute(new StringReader("let x = 5; let y = 3; x * y"));
+    assertEquals("Reader input should compile like a string", 15.0,
+        ((Number) result).doubleValue(), 0.001);
+  }
+
+  @Test(timeout = 2000)
+  public void testExecuteUtf8Bytes() {
+    Object result = compiler.execute("let x = 6; x / 4;".getBytes(StandardCharsets.UTF_8));
+    assertEquals("UTF-8 input should compile like a string", 1.5,
+        ((Number) result).doubleValue(), 0.001);
+  }
+
+  @Test(timeout = 2000)
+  public void testCheckReportsAllErrors() {
+    Diagnostics diagnostics = compiler.check("let x = 1 | 2;\nlet y = (3;\nx + y;");
+    assertEquals("Scanner and parser errors should both be reported", 3,
+        diagnostics.size());
+    assertEquals("Unexpected character '|'", diagnostics.message(0));
+    assertEquals(1, diagnostics.line(1));
+    assertEquals(2, diagnostics.line(2));
+    assertFalse(compiler.check("let x = 1; x + 2;").hasErrors());
+  }
+
+  @Test
+  public void testCheckReportsConstAssignment() {
+    Diagnostics diagnostics = compiler.check("const a = 1;\na = 2;\nconst a = 3;");
+    assertEquals(2, diagnostics.size());
+    assertTrue(diagnostics.message(0).startsWith("Cannot assign to const variable."));
+    assertEquals(2, diagnostics.line(0));
+    assertTrue(diagnostics.message(1).startsWith("Cannot redeclare const variable."));
+    assertEquals(3, diagnostics.line(1));
+  }
+
+  @Test(timeout = 2000)
+  public void testLazyFunctionCompiledOnFirstCall() {
+    compiler.setLazyFunctions(true);
+    Object result = compiler.execute(
+        "function unused() { this is not parsed } " +
+            "function add(a, b) { return a + b; } " +
+            "add(3, 4);");
+    assertEquals("Lazy function should return correct value", 7.0,
+        ((Number) result).doubleValue(), 0.001);
+  }
+
+  @Test(timeout = 2000)
+  public void testCompileIgnoresLazyFunctions() throws Exception {
+    compiler.setLazyFunctions(true);
+    Program program = compiler.compile("function f() { return 1; } f();");
+    assertFalse(program.toString().contains("PUSHLAZY"));
+    assertEquals(1.0, ((Number) compiler.execute(program)).doubleValue(), 0.001);
+    ProgramWriter.write(program, new ByteArrayOutputStream());
+  }
+
+  @Test(timeout = 2000)
+  public void testProgramFileRoundTrip() throws Exception {
+    Program program = compiler.compile(
+        "function greet(name) { return name == \"wörld\"; } " +
+            "let x = 6; if (greet(\"wörld\")) x = x / 4; x;");
+    Path file = Files.createTempFile("program", ".smbc");
+    try {
+      try (OutputStream out = Files.newOutputStream(file)) {
+        ProgramWriter.write(program, out);
+      }
+      Program loaded;
+      try (FileChannel channel = FileChannel.open(file)) {
+        loaded = ProgramLoader.load(channel);
+      }
+
+      assertEquals(program.toString(), loaded.toString());
+      assertEquals("Loaded program should run like the compiled one", 1.5,
+          ((Number) compiler.execute(loaded)).doubleValue(), 0.001);
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testProgramFileLocalSlotsChecked() throws Exception {
+    Program program = compiler.compile("function id(a) { return a; } id(1);");
+    int[] code = program.code();
+    for (int offset = 0; offset < program.length(); offset += Program.width(code[offset])) {
+      if (code[offset] == Program.STORE_LOCAL)
+        code[offset + 1] = 1;
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ProgramWriter.write(program, out);
+    try {
+      ProgramLoader.load(ByteBuffer.wrap(out.toByteArray()));
+      fail("A slot outside the frame should be rejected");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("Invalid local slot 1"));
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testProgramFileChecksum() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ProgramWriter.write(compiler.compile("let x = 1; x + 2;"), out);
+    byte[] bytes = out.toByteArray();
+    bytes[20] ^= 1;
+    ProgramLoader.load(ByteBuffer.wrap(bytes));
+  }
+
+  @Test(timeout = 2000)
+  public void testNestedFunctionReadsEnclosingVariable() {
+    Object result = compiler.execute(
+        "function outer() { let x = 1; function inner() { return x; } return inner(); } outer();");
+    assertEquals(1.0, ((Number) result).doubleValue(), 0.001);
+
+    result = compiler.execute(
+        "function counter(n) { let count = 0; " +
+            "function add(k) { count = count + k; } " +
+            "while (n > 0) { add(n); n = n - 1; } return count; } counter(4);");
+    assertEquals("Nested function should assign the enclosing variable", 10.0,
+        ((Number) result).doubleValue(), 0.001);
+  }
+
+  @Test(timeout = 2000)
+  public void testNestedAssignmentReachesEnclosingScope() {
+    // inc opens a scope of its own for d
+    Object result = compiler.execute(
+        "function mk() { let c = 0; function inc() { let d = 1; function q() { return d; } " +
+            "c = c + q(); return c; } inc(); inc(); return inc(); } mk();");
+    assertEquals(3.0, ((Number) result).doubleValue(), 0.001);
+
+    // inc is called from a block with a scope of its own
+    result = compiler.execute(
+        "function mk() { let c = 0; function inc() { c = c + 1; } " +
+            "{ let z = 1; function w() { return z; } inc(); } return c; } mk();");
+    assertEquals(1.0, ((Number) result).doubleValue(), 0.001);
+  }
+
+  @Test(timeout = 2000)
+  public void testNestedFunctionRecursion() {
+    String source = "function f(n) { function g(k) { if (k < 1) return 0; return k + g(k - 1); } " +
+        "return g(n); } f(3);";
+    assertEquals(6.0, ((Number) compiler.execute(source)).doubleValue(), 0.001);
+
+    compiler.setLazyFunctions(true);
+    assertEquals("Lazy functions should see enclosing names too", 6.0,
+        ((Number) compiler.execute(source)).doubleValue(), 0.001);
+  }
+
+  @Test(timeout = 2000)
+  public void testNestedFunctionSeesShadowingConst() {
+    String source = "const k = 1; function f() { const k = 2; function g() { return k; } return g(); } f();";
+    assertEquals(2.0, ((Number) compiler.execute(source)).doubleValue(), 0.001);
+
+    compiler.setLazyFunctions(true);
+    assertEquals(2.0, ((Number) compiler.execute(source)).doubleValue(), 0.001);
+  }
+
+  @Test(timeout = 2000)
+  public void testCompiledLoopIsQuickened() {
+    Program program = compiler.compile(
+        "let n = 0; let i = 0; while (i < 1000) { n = n + i; i = i + 1; } n;");
+    StackMachine machine = new StackMachine(program);
+    assertEquals(499500.0, ((Number) machine.execute()).doubleValue(), 0.001);
+    // The globals have no inferred type, so LT and both ADDs are quickened
+    assertEquals(3, machine.getQuickenedCount());
+  }
+
+  @Test(timeout = 10000)
+  public void testNestedBlocksAndIfs() {
+    // Statements nest through recursion in every phase, unlike expressions
+    int depth = 1000;
+    StringBuilder source = new StringBuilder("let x = 0; ");
+    for (int i = 0; i < depth; i++) {
+      source.append(i % 2 == 0 ? "if (x < 1) { " : "{ let y = x; ");
+    }
+    source.append("x = x + 1; ");
+    for (int i = 0; i < depth; i++) {
+      source.append("} ");
+    }
+    Object result = compiler.execute(source.append("x;").toString());
+    assertEquals(1.0, ((Number) result).doubleValue(), 0.001);
+  }
+
+  @Test(timeout = 2000)
+  public void testLoopWithinIterationLimit() {
+    Object result = compiler.execute("let i = 0; while (i < 50) { i = i + 1; } i;");
+    assertEquals(50.0, ((Number) result).doubleValue(), 0.001);
+
+    compiler.setMaxIterations(100);
+    try {
+      compiler.execute("let i = 0; while (i < 50) { i = i + 1; } i;");
+      fail("The loop should run past the limit");
+    } catch (RuntimeException e) {
+      assertTrue(e.getMessage().contains("infinite loop"));
+    }
+  }
 }
@@ -5,11 +5,19 @@ import org.junit.Before;
 import org.junit.Test;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import com.example.code.CodeGenerator;
 import com.example.parser.Parser;
 import com.example.parser.Statement;
+import com.example.scanner.Diagnostics;
+import com.example.scanner.IncrementalScanner;
+import com.example.scanner.Scanner;
 import com.example.scanner.Token;
+import com.example.scanner.TokenStream;
 import com.example.scanner.TokenType;
 import com.example.parser.Expression;
+import com.example.parser.IncrementalParser;
+import com.example.parser.ParallelParser;
 import com.example.parser.ParseError;
 
 public class ParserTest {
@@ -191,4 +199,289 @@ public class ParserTest {
     Statement.Var varStmt = (Statement.Var) statements.get(0);
     assertTrue(varStmt.initializer instanceof Expression.Binary);
   }
+
+  @Test
+  public void testParseTokenStream() {
+    TokenStream stream = new Scanner("let x = (2 + 3) * y; function f(a) { return a; }").scanTokenStream();
+
+    parser = new Parser(stream);
+    List<Statement> statements = parser.parse();
+
+    assertEquals(2, statements.size());
+    Statement.Var varStmt = (Statement.Var) statements.get(0);
+    assertEquals("x", varStmt.name.lexeme);
+    Expression.Binary product = (Expression.Binary) varStmt.initializer;
+    assertEquals(TokenType.STAR, product.operator.type);
+    assertEquals("y", ((Expression.Variable) product.right).name.lexeme);
+    Statement.Function function = (Statement.Function) statements.get(1);
+    assertEquals("f", function.name.lexeme);
+    assertEquals(1, function.body.size());
+  }
+
+  @Test
+  public void testParseTokenSource() {
+    parser = new Parser(new Scanner("let x = 1; if (x < 2) { x = x + 1; } else x = 0;"));
+    List<Statement> statements = parser.parse();
+
+    assertEquals(2, statements.size());
+    assertTrue(statements.get(0) instanceof Statement.Var);
+    Statement.If ifStmt = (Statement.If) statements.get(1);
+    assertTrue(ifStmt.thenBranch instanceof Statement.Block);
+    assertTrue(ifStmt.elseBranch instanceof Statement.Expression);
+  }
+
+  @Test(expected = ParseError.class)
+  public void testParseTokenSourceError() {
+    parser = new Parser(new Scanner("let x = ;"));
+    parser.parse();
+  }
+
+  @Test
+  public void testDiagnosticsRecoverAfterErrors() {
+    parser = new Parser(new Scanner("let x = ;\nlet y = 2;\nwhile (y) { y = ; }\nfunction f() { let = 3; return y; }\ny + 1;").scanTokenStream());
+    Diagnostics diagnostics = new Diagnostics();
+    parser.setDiagnostics(diagnostics);
+    List<Statement> statements = parser.parse();
+
+    assertEquals(3, diagnostics.size());
+    assertEquals(1, diagnostics.line(0));
+    assertTrue(diagnostics.message(0).startsWith("Expect expression."));
+    assertEquals(3, diagnostics.line(1));
+    assertEquals(4, diagnostics.line(2));
+    assertTrue(diagnostics.message(2).startsWith("Expect variable name."));
+
+    // The statements without errors are still parsed, and the loop body
+    // recovered inside its block
+    assertEquals(4, statements.size());
+    assertEquals("y", ((Statement.Var) statements.get(0)).name.lexeme);
+    Statement.While loop = (Statement.While) statements.get(1);
+    assertTrue(((Statement.Block) loop.body).statements.isEmpty());
+    assertTrue(statements.get(3) instanceof Statement.Expression);
+  }
+
+  @Test
+  public void testOperatorPrecedence() {
+    parser = new Parser(new Scanner("a = b = -x * 2 + f(1)(2) < 3 || y && !z == null;").scanTokenStream());
+    Statement.Expression statement = (Statement.Expression) parser.parse().get(0);
+
+    // Assignment is right-associative
+    Expression.Assign outer = (Expression.Assign) statement.expression;
+    assertEquals("a", outer.name.lexeme);
+    Expression.Assign inner = (Expression.Assign) outer.value;
+    assertEquals("b", inner.name.lexeme);
+
+    // || binds looser than &&, which binds looser than ==
+    Expression.Logical or = (Expression.Logical) inner.value;
+    assertEquals(TokenType.OR, or.operator.type);
+    Expression.Logical and = (Expression.Logical) or.right;
+    assertEquals(TokenType.AND, and.operator.type);
+    Expression.Binary equal = (Expression.Binary) and.right;
+    assertEquals(TokenType.EQUAL_EQUAL, equal.operator.type);
+    assertTrue(equal.left instanceof Expression.Unary);
+
+    Expression.Binary less = (Expression.Binary) or.left;
+    assertEquals(TokenType.LESS, less.operator.type);
+    Expression.Binary plus = (Expression.Binary) less.left;
+    assertEquals(TokenType.PLUS, plus.operator.type);
+    Expression.Binary times = (Expression.Binary) plus.left;
+    assertTrue(times.left instanceof Expression.Unary);
+    Expression.Call call = (Expression.Call) plus.right;
+    assertTrue(call.callee instanceof Expression.Call);
+  }
+
+  @Test
+  public void testBinaryOperatorsAreLeftAssociative() {
+    parser = new Parser(new Scanner("8 - 4 - 2;").scanTokenStream());
+    Statement.Expression statement = (Statement.Expression) parser.parse().get(0);
+
+    Expression.Binary outer = (Expression.Binary) statement.expression;
+    assertEquals(2.0, ((Expression.Literal) outer.right).value);
+    Expression.Binary inner = (Expression.Binary) outer.left;
+    assertEquals(8.0, ((Expression.Literal) inner.left).value);
+  }
+
+  @Test(expected = ParseError.class)
+  public void testInvalidAssignmentTarget() {
+    parser = new Parser(new Scanner("a + b = c;").scanTokenStream());
+    parser.parse();
+  }
+
+  static String nestedSum(int depth) {
+    StringBuilder source = new StringBuilder(depth * 8);
+    for (int i = 0; i < depth; i++) {
+      source.append("a + (");
+    }
+    source.append('1');
+    for (int i = 0; i < depth; i++) {
+      source.append(')');
+    }
+    return source.append(';').toString();
+  }
+
+  @Test(timeout = 30000)
+  public void testDeeplyNestedExpression() {
+    int depth = 1_000_000;
+    parser = new Parser(new Scanner(nestedSum(depth)).scanTokenStream());
+    Statement.Expression statement = (Statement.Expression) parser.parse().get(0);
+
+    Expression expr = statement.expression;
+    for (int i = 0; i < depth; i++) {
+      expr = ((Expression.Grouping) ((Expression.Binary) expr).right).expression;
+    }
+    assertEquals(1.0, ((Expression.Literal) expr).value);
+  }
+
+  @Test(timeout = 30000)
+  public void testDeeplyNestedUnaryAndCalls() {
+    int depth = 1_000_000;
+    StringBuilder source = new StringBuilder();
+    for (int i = 0; i < depth; i++) {
+      source.append(i % 2 == 0 ? "-" : "f(");
+    }
+    source.append('x');
+    for (int i = 0; i < depth / 2; i++) {
+      source.append(')');
+    }
+    parser = new Parser(new Scanner(source.append(';').toString()).scanTokenStream());
+    List<Statement> statements = parser.parse();
+
+    Expression node = ((Statement.Expression) statements.get(0)).expression;
+    assertTrue(node instanceof Expression.Unary);
+    assertTrue(((Expression.Unary) node).right instanceof Expression.Call);
+  }
+
+  private static String functionModule(int count) {
+    StringBuilder source = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      source.append("function f").append(i).append("(a, b) {\n")
+          .append("  let c = a * ").append(i).append(";\n")
+          .append("  if (c > b) { return c; } else { while (b < c) b = b + 1; }\n")
+          .append("  { a; }\n  return b;\n")
+          .append("}\n");
+      if (i % 10 == 0)
+        source.append("let v").append(i).append(" = f").append(i).append("(1, 2);\n");
+    }
+    return source.toString();
+  }
+
+  @Test
+  public void testParallelParseMatchesSequential() {
+    TokenStream tokens = new Scanner(functionModule(200)).scanTokenStream();
+    List<Statement> sequential = new Parser(tokens).parse();
+    List<Statement> parallel = new ParallelParser(tokens, 100).parse(ForkJoinPool.commonPool());
+
+    assertEquals(220, parallel.size());
+    assertEquals(new CodeGenerator().generateCode(sequential).toString(),
+        new CodeGenerator().generateCode(parallel).toString());
+  }
+
+  @Test(expected = ParseError.class)
+  public void testParallelParseFallsBackOnError() {
+    String source = functionModule(50) + "function broken( { }\n" + functionModule(50);
+    new ParallelParser(new Scanner(source).scanTokenStream(), 100).parse(ForkJoinPool.commonPool());
+  }
+
+  @Test
+  public void testParallelParseReportsErrorsInOrder() {
+    String source = functionModule(50) + "let x = ;\n" + functionModule(50) + "let y = ;\n";
+    ParallelParser parser = new ParallelParser(new Scanner(source).scanTokenStream(), 100);
+    Diagnostics diagnostics = new Diagnostics();
+    parser.setDiagnostics(diagnostics);
+    parser.parse(ForkJoinPool.commonPool());
+
+    assertEquals(2, diagnostics.size());
+    assertTrue(diagnostics.line(0) < diagnostics.line(1));
+  }
+
+  @Test
+  public void testLazyFunctionBodies() {
+    parser = new Parser(new Scanner(
+        "function broken() { let = ; { } }\nfunction add(a, b) { { a; } return a + b; }\nadd(1, 2);").scanTokenStream());
+    parser.setLazyFunctions(true);
+    List<Statement> statements = parser.parse();
+
+    // The broken body is only matched for braces, never parsed
+    assertEquals(3, statements.size());
+    Statement.Function broken = (Statement.Function) statements.get(0);
+    assertTrue(broken.isLazy());
+    assertNull(broken.body);
+
+    Statement.Function add = (Statement.Function) statements.get(1);
+    List<Statement> body = add.getBody();
+    assertEquals(2, body.size());
+    assertTrue(body.get(0) instanceof Statement.Block);
+    assertTrue(body.get(1) instanceof Statement.Return);
+    assertSame(body, add.getBody());
+
+    try {
+      broken.getBody();
+      fail("Expected a ParseError");
+    } catch (ParseError error) {
+      assertTrue(error.getMessage().startsWith("Expect variable name."));
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testLazyFunctionsNeedTokenStream() {
+    new Parser(new Scanner("function f() {}").scanTokens()).setLazyFunctions(true);
+  }
+
+  @Test
+  public void testIncrementalReparseReusesUnchangedStatements() {
+    String source = "let a = 1;\n"
+        + "function f(x) { if (x) { x = x + 1; } return x * 2; }\n"
+        + "let b = f(a);\n"
+        + "{ b = b + 1; }\n";
+    TokenStream before = new Scanner(source).scanTokenStream();
+    IncrementalParser incremental = new IncrementalParser();
+    List<Statement> old = new ArrayList<>(incremental.parse(before));
+    assertEquals(4, old.size());
+
+    IncrementalScanner scanner = new IncrementalScanner();
+    int offset = source.indexOf("x * 2");
+    TokenStream after = scanner.rescan(before, offset, 5, "x * 20 + 1");
+    List<Statement> statements = incremental.reparse(after, scanner.getLastEdit());
+
+    assertEquals(4, statements.size());
+    assertEquals(3, incremental.getReusedCount());
+    assertSame(old.get(0), statements.get(0));
+    assertNotSame(old.get(1), statements.get(1));
+    assertSame(old.get(2), statements.get(2));
+    assertSame(old.get(3), statements.get(3));
+
+    // The if's block comes before the edit and is taken over as well
+    Statement.If oldIf = (Statement.If) ((Statement.Function) old.get(1)).body.get(0);
+    Statement.If newIf = (Statement.If) ((Statement.Function) statements.get(1)).body.get(0);
+    assertNotSame(oldIf, newIf);
+    assertSame(oldIf.thenBranch, newIf.thenBranch);
+
+    assertEquals(new CodeGenerator().generateCode(new Parser(after).parse()).toString(),
+        new CodeGenerator().generateCode(statements).toString());
+    assertEquals(after.size() - 1, incremental.end(3));
+  }
+
+  @Test
+  public void testIncrementalReparseOfBlockAfterEdit() {
+    String source = "let a = 1;\nif (a) { a = 2; } else { a = 3; }\nlet c = a;\n";
+    TokenStream before = new Scanner(source).scanTokenStream();
+    IncrementalParser incremental = new IncrementalParser();
+    List<Statement> old = new ArrayList<>(incremental.parse(before));
+
+    // Renaming the condition shifts nothing, but the blocks behind it move
+    // into a reparsed statement and are still reused
+    IncrementalScanner scanner = new IncrementalScanner();
+    int offset = source.indexOf("(a)") + 1;
+    TokenStream after = scanner.rescan(before, offset, 1, "a + 1");
+    List<Statement> statements = incremental.reparse(after, scanner.getLastEdit());
+
+    assertEquals(3, statements.size());
+    Statement.If oldIf = (Statement.If) old.get(1);
+    Statement.If newIf = (Statement.If) statements.get(1);
+    assertNotSame(oldIf, newIf);
+    assertSame(oldIf.thenBranch, newIf.thenBranch);
+    assertSame(oldIf.elseBranch, newIf.elseBranch);
+    assertSame(old.get(2), statements.get(2));
+    assertEquals(new CodeGenerator().generateCode(new Parser(after).parse()).toString(),
+        new CodeGenerator().generateCode(statements).toString());
+  }
 }
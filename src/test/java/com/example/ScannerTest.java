@@ -2,7 +2,14 @@ package com.example;
 
 import static org.junit.Assert.*;
 import org.junit.Test;
+import java.io.StringReader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 import com.example.scanner.*;
 
@@ -127,4 +134,345 @@ public class ScannerTest {
     scanner = new Scanner("/* unterminated");
     scanner.scanTokens();
   }
+
+  @Test
+  public void testTokenStreamMatchesTokenList() {
+    String source = "let x = 'it\\'s' + 12.5; // done\nfoo(x, \"bar\");";
+    List<Token> tokens = new Scanner(source).scanTokens();
+    TokenStream stream = new Scanner(source).scanTokenStream();
+
+    assertEquals(tokens.size(), stream.size());
+    for (int i = 0; i < tokens.size(); i++) {
+      Token token = stream.token(i);
+      assertEquals(tokens.get(i).type, stream.type(i));
+      assertEquals(tokens.get(i).lexeme, token.lexeme);
+      assertEquals(tokens.get(i).literal, token.literal);
+      assertEquals(tokens.get(i).line, stream.line(i));
+    }
+    assertEquals("it's", stream.literal(3));
+  }
+
+  @Test
+  public void testTokenStreamOffsets() {
+    TokenStream stream = new Scanner("foo  +\n bar").scanTokenStream();
+
+    assertEquals(4, stream.size());
+    assertEquals(0, stream.start(0));
+    assertEquals(3, stream.length(0));
+    assertEquals(5, stream.start(1));
+    assertEquals(8, stream.start(2));
+    assertEquals(2, stream.line(2));
+    assertEquals(TokenType.EOF, stream.type(3));
+  }
+
+  @Test
+  public void testMultiLineString() {
+    scanner = new Scanner("\"a\nb\" x");
+    List<Token> tokens = scanner.scanTokens();
+    assertEquals("a\nb", tokens.get(0).literal);
+    assertEquals(2, tokens.get(1).line);
+  }
+
+  private void assertSameTokens(List<Token> expected, List<Token> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.get(i).type, actual.get(i).type);
+      assertEquals(expected.get(i).lexeme, actual.get(i).lexeme);
+      assertEquals(expected.get(i).literal, actual.get(i).literal);
+      assertEquals(expected.get(i).line, actual.get(i).line);
+    }
+  }
+
+  @Test
+  public void testReaderWithSmallWindow() {
+    String source = "function average(first, second) {\n" +
+        "  /* tokens straddle\n the window */ return (first + second) / 2.25;\n" +
+        "}\nlet message = \"a \\\"long\\\" string literal\"; // trailing\n";
+    List<Token> expected = new Scanner(source).scanTokens();
+    List<Token> actual = new Scanner(new StringReader(source), 3).scanTokens();
+
+    assertSameTokens(expected, actual);
+  }
+
+  @Test
+  public void testMappedFileReader() throws Exception {
+    String source = "let greeting = \"Grüße, 世界\";\nlet n = 12345.678;\n";
+    Path file = Files.createTempFile("scanner", ".txt");
+    try {
+      Files.write(file, source.getBytes(StandardCharsets.UTF_8));
+      List<Token> actual;
+      try (FileChannel channel = FileChannel.open(file)) {
+        actual = new Scanner(new MappedFileReader(channel, 7), 4).scanTokens();
+      }
+
+      assertSameTokens(new Scanner(source).scanTokens(), actual);
+      assertEquals("Grüße, 世界", actual.get(3).literal);
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testImplicitSemicolon() {
+    scanner = new Scanner("x + 1");
+    scanner.setImplicitSemicolon(true);
+    List<Token> tokens = scanner.scanTokens();
+    assertEquals(TokenType.SEMICOLON, tokens.get(3).type);
+
+    scanner = new Scanner("x + 1; ");
+    scanner.setImplicitSemicolon(true);
+    assertEquals(5, scanner.scanTokens().size());
+  }
+
+  @Test
+  public void testNextTokenIsLazy() {
+    scanner = new Scanner(new StringReader("let x = 1; // comment"));
+
+    assertEquals(TokenType.LET, scanner.nextToken().type);
+    assertEquals("x", scanner.nextToken().lexeme);
+    assertEquals(TokenType.EQUAL, scanner.nextToken().type);
+    assertEquals(1.0, scanner.nextToken().literal);
+    assertEquals(TokenType.SEMICOLON, scanner.nextToken().type);
+    assertEquals(TokenType.EOF, scanner.nextToken().type);
+    assertEquals(TokenType.EOF, scanner.nextToken().type);
+  }
+
+  @Test
+  public void testUtf8ScannerMatchesScanner() {
+    String source = "let s = 'Grüße, \\'世界\\''; // ümlaut\nlet n = 3.25 * (n - 1);";
+    List<Token> expected = new Scanner(source).scanTokens();
+    List<Token> actual = new Utf8Scanner(source.getBytes(StandardCharsets.UTF_8)).scanTokens();
+
+    assertSameTokens(expected, actual);
+    assertEquals("Grüße, '世界'", actual.get(3).literal);
+  }
+
+  @Test
+  public void testUtf8TokenStream() {
+    TokenStream stream = new Utf8Scanner("x = \"größer\";".getBytes(StandardCharsets.UTF_8)).scanTokenStream();
+
+    assertEquals(5, stream.size());
+    assertEquals("x", stream.lexeme(0));
+    assertEquals(TokenType.STRING, stream.type(2));
+    assertEquals("größer", stream.literal(2));
+    assertEquals(TokenType.SEMICOLON, stream.type(3));
+  }
+
+  @Test
+  public void testUtf8UnexpectedCharacter() {
+    try {
+      new Utf8Scanner("x = ä;".getBytes(StandardCharsets.UTF_8)).scanTokens();
+      fail("Expected a ScannerError");
+    } catch (ScannerError error) {
+      assertTrue(error.getMessage().contains("'ä'"));
+    }
+  }
+
+  private void assertSameTokens(TokenStream expected, TokenStream actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.type(i), actual.type(i));
+      assertEquals(expected.start(i), actual.start(i));
+      assertEquals(expected.length(i), actual.length(i));
+      assertEquals(expected.line(i), actual.line(i));
+    }
+  }
+
+  @Test
+  public void testParallelScannerMatchesScanner() {
+    StringBuilder source = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+      source.append("let v").append(i).append(" = ").append(i).append(" * 2; // line ").append(i).append('\n');
+      source.append("/* a comment\nspanning lines */ let s").append(i).append(" = \"multi\nline \\\" string\";\n");
+    }
+    char[] chars = source.toString().toCharArray();
+
+    ParallelScanner parallel = new ParallelScanner(chars, 64);
+    parallel.setImplicitSemicolon(true);
+    Scanner sequential = new Scanner(chars);
+    sequential.setImplicitSemicolon(true);
+
+    assertSameTokens(sequential.scanTokenStream(), parallel.scanTokenStream(ForkJoinPool.commonPool()));
+  }
+
+  @Test(expected = ScannerError.class)
+  public void testParallelScannerError() {
+    char[] chars = "let a = 1;\nlet b = 2;\nlet c = #;\nlet d = 4;\n".toCharArray();
+    new ParallelScanner(chars, 4).scanTokenStream(ForkJoinPool.commonPool());
+  }
+
+  @Test
+  public void testKeywordLookalikesAreIdentifiers() {
+    scanner = new Scanner("iff le lets fo whilee returns func nul True");
+    List<Token> tokens = scanner.scanTokens();
+    for (int i = 0; i < tokens.size() - 1; i++) {
+      assertEquals(TokenType.IDENTIFIER, tokens.get(i).type);
+    }
+  }
+
+  @Test
+  public void testIdentifiersAreInterned() {
+    scanner = new Scanner("count = count + other; count;");
+    List<Token> tokens = scanner.scanTokens();
+
+    assertSame(tokens.get(0).lexeme, tokens.get(2).lexeme);
+    assertSame(tokens.get(0).lexeme, tokens.get(6).lexeme);
+    assertEquals(tokens.get(0).symbol, tokens.get(6).symbol);
+    assertNotEquals(tokens.get(0).symbol, tokens.get(4).symbol);
+    assertEquals(-1, tokens.get(1).symbol);
+    assertEquals(2, scanner.getSymbolTable().size());
+  }
+
+  @Test
+  public void testTokenStreamSharesSymbolTable() {
+    SymbolTable symbols = new SymbolTable();
+    int total = symbols.intern("total");
+
+    scanner = new Scanner("total = total * 2;");
+    scanner.setSymbolTable(symbols);
+    TokenStream stream = scanner.scanTokenStream();
+
+    assertEquals(total, stream.symbol(0));
+    assertSame(symbols.name(total), stream.token(2).lexeme);
+    assertEquals(-1, stream.symbol(1));
+
+    TokenStream bytes = new Utf8Scanner("x = total;".getBytes(StandardCharsets.UTF_8)).scanTokenStream();
+    assertEquals(0, bytes.symbol(2));
+    assertEquals(1, bytes.symbol(0));
+    assertEquals("total", bytes.lexeme(2));
+  }
+
+  @Test
+  public void testNumberLiteralsRoundCorrectly() {
+    String[] literals = {
+        "0", "7", "0.1", "0.3", "1.005", "123456789012345", "1234567890123456789",
+        "9007199254740993", "3.141592653589793238", "0.000000000000000000000001",
+        "99999999999999.99", "2.5e", "00012.50"
+    };
+    StringBuilder source = new StringBuilder();
+    Random random = new Random(42);
+    for (String literal : literals) {
+      source.append(literal).append(' ');
+    }
+    for (int i = 0; i < 500; i++) {
+      source.append(random.nextInt(1000000)).append('.').append(random.nextInt(100000000)).append(' ');
+    }
+
+    TokenStream stream = new Scanner(source.toString()).scanTokenStream();
+    for (int i = 0; i < stream.size(); i++) {
+      if (stream.type(i) == TokenType.NUMBER) {
+        double expected = Double.parseDouble(stream.lexeme(i));
+        assertEquals(stream.lexeme(i), expected, stream.number(i), 0.0);
+        assertEquals(expected, stream.token(i).literal);
+      }
+    }
+  }
+
+  private void assertRescanMatches(String source, int offset, int removed, String inserted) {
+    Scanner scanner = new Scanner(source);
+    scanner.setImplicitSemicolon(true);
+    TokenStream before = scanner.scanTokenStream();
+
+    IncrementalScanner incremental = new IncrementalScanner();
+    incremental.setImplicitSemicolon(true);
+    TokenStream after = incremental.rescan(before, offset, removed, inserted);
+
+    String edited = source.substring(0, offset) + inserted + source.substring(offset + removed);
+    Scanner full = new Scanner(edited);
+    full.setImplicitSemicolon(true);
+    TokenStream expected = full.scanTokenStream();
+    assertSameTokens(expected, after);
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.lexeme(i), after.lexeme(i));
+      assertEquals(expected.literal(i), after.literal(i));
+    }
+  }
+
+  @Test
+  public void testIncrementalRescan() {
+    String source = "let total = 0;\n" +
+        "function add(a, b) {\n  return a + b; // sum\n}\n" +
+        "/* block\n comment */ total = add(total, 12.5);\n" +
+        "let s = \"two\nlines\";\n";
+
+    assertRescanMatches(source, 4, 5, "sum");
+    assertRescanMatches(source, 9, 0, "x");
+    assertRescanMatches(source, 14, 0, "\n\n\n");
+    assertRescanMatches(source, source.indexOf("sum"), 0, "*/ ");
+    assertRescanMatches(source, source.indexOf("block"), 0, "*/ x /* ");
+    assertRescanMatches(source, source.indexOf("two"), 0, "\" + \"");
+    assertRescanMatches(source, source.indexOf("12.5"), 2, "");
+    assertRescanMatches(source, source.length(), 0, "total");
+    assertRescanMatches(source, 0, source.length(), "x");
+    assertRescanMatches("let y = 1.x;", 10, 1, "5");
+  }
+
+  @Test
+  public void testIncrementalRescanIsLocal() {
+    StringBuilder source = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      source.append("let v").append(i).append(" = ").append(i).append(";\n");
+    }
+    TokenStream before = new Scanner(source.toString()).scanTokenStream();
+    int offset = source.indexOf("v50");
+
+    IncrementalScanner incremental = new IncrementalScanner();
+    TokenStream after = incremental.rescan(before, offset, 3, "renamed");
+
+    TokenEdit edit = incremental.getLastEdit();
+    // "let" is scanned again, since the scanner may have looked into the edit
+    assertEquals(250, edit.start);
+    assertEquals(2, edit.removed);
+    assertEquals(2, edit.inserted);
+    assertEquals("renamed", after.lexeme(251));
+    assertEquals(before.start(400) + 4, after.start(400));
+    assertSame(before.symbolTable(), after.symbolTable());
+  }
+
+  @Test
+  public void testDiagnosticsCollectAllErrors() {
+    scanner = new Scanner("let a = 1 & 2;\nlet b = #;\nlet c = 'open");
+    Diagnostics diagnostics = new Diagnostics();
+    scanner.setDiagnostics(diagnostics);
+    List<Token> tokens = scanner.scanTokens();
+
+    assertEquals(3, diagnostics.size());
+    assertEquals(1, diagnostics.line(0));
+    assertEquals("Unexpected character '&'", diagnostics.message(0));
+    assertEquals(2, diagnostics.line(1));
+    assertEquals("Unexpected character '#'", diagnostics.message(1));
+    assertEquals("Unterminated string.", diagnostics.message(2));
+    // Scanning went on after each error
+    assertEquals(TokenType.NUMBER, tokens.get(4).type);
+    assertEquals("c", tokens.get(tokens.size() - 3).lexeme);
+  }
+
+  @Test
+  public void testUtf8DiagnosticsSkipWholeCharacter() {
+    Utf8Scanner utf8 = new Utf8Scanner("x = ä;".getBytes(StandardCharsets.UTF_8));
+    Diagnostics diagnostics = new Diagnostics();
+    utf8.setDiagnostics(diagnostics);
+    TokenStream tokens = utf8.scanTokenStream();
+
+    assertEquals(1, diagnostics.size());
+    assertEquals("Unexpected character 'ä'", diagnostics.message(0));
+    assertEquals(4, tokens.size());
+  }
+
+  @Test
+  public void testParallelScannerDiagnosticsInOrder() {
+    StringBuilder source = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+      source.append(i % 50 == 0 ? "x = #;\n" : "x = 1;\n");
+    }
+    ParallelScanner parallel = new ParallelScanner(source.toString().toCharArray(), 64);
+    Diagnostics diagnostics = new Diagnostics();
+    parallel.setDiagnostics(diagnostics);
+    parallel.scanTokenStream(ForkJoinPool.commonPool());
+
+    assertEquals(4, diagnostics.size());
+    for (int i = 0; i < 4; i++) {
+      assertEquals(i * 50 + 1, diagnostics.line(i));
+    }
+  }
 }
@@ -7,8 +7,14 @@ import static org.junit.Assert.*;
 import java.util.ArrayList;
 import java.util.List;
 import com.example.stack.StackMachine;
+import com.example.code.CodeGenerator;
 import com.example.code.Operation;
+import com.example.code.Program;
 import com.example.code.Instruction;
+import com.example.code.Resolver;
+import com.example.parser.Parser;
+import com.example.parser.Statement;
+import com.example.scanner.Scanner;
 
 public class StackMachineTest {
   private StackMachine stackMachine;
@@ -147,7 +153,7 @@ public class StackMachineTest {
 
     // Main program
     instructions.add(new Instruction(Operation.LABEL, 1));
-    instructions.add(new Instruction(Operation.PUSHFUN, 1));
+    instructions.add(new Instruction(Operation.PUSHFUN, 0));
     instructions.add(new Instruction(Operation.STOREFUN, "add"));
     instructions.add(new Instruction(Operation.PUSH, 3.0));
     instructions.add(new Instruction(Operation.PUSH, 4.0));
@@ -232,6 +238,58 @@ public class StackMachineTest {
     assertEquals(10.0, result);
   }
 
+  @Test
+  public void testQuickening() {
+    List<Statement> statements = new Parser(new Scanner(
+        "function eq(a, b) { return a == b; } let n = 0; let i = 0; "
+            + "while (i < 20) { if (eq(i, i)) n = n + 1; i = i + 1; } "
+            + "if (eq(\"x\", \"x\")) n = n + 100; n;").scanTokens()).parse();
+    Resolver resolver = new Resolver();
+    resolver.resolve(statements);
+    CodeGenerator generator = new CodeGenerator();
+    generator.setResolver(resolver);
+
+    stackMachine = new StackMachine(generator.generateCode(statements));
+    stackMachine.setMaxIterations(100000);
+    assertEquals(120.0, stackMachine.execute());
+    // LT and both loop ADDs stay quickened; EQ went back to the generic
+    // form for the strings
+    assertEquals(3, stackMachine.getQuickenedCount());
+  }
+
+  @Test
+  public void testLazyFunctionsLeaveProgramUnchanged() {
+    Parser parser = new Parser(new Scanner(
+        "function add(a, b) { return a + b; } add(3, 4);").scanTokenStream());
+    parser.setLazyFunctions(true);
+    List<Statement> statements = parser.parse();
+    Resolver resolver = new Resolver();
+    resolver.resolve(statements);
+    CodeGenerator generator = new CodeGenerator();
+    generator.setResolver(resolver);
+    Program program = Program.encode(generator.generateCode(statements));
+    int length = program.length();
+
+    // Each machine compiles the function into its own copy of the program
+    for (int i = 0; i < 2; i++) {
+      stackMachine = new StackMachine(program);
+      stackMachine.setFunctionCompiler(generator);
+      assertEquals(7.0, stackMachine.execute());
+      assertEquals(length, program.length());
+    }
+  }
+
+  @Test
+  public void testNamesFromDistinctStrings() {
+    // Equal names share one pool entry, so identity lookups find them
+    instructions.add(new Instruction(Operation.PUSH, 2.0));
+    instructions.add(new Instruction(Operation.STORE, new String("x")));
+    instructions.add(new Instruction(Operation.LOAD, new String("x")));
+
+    stackMachine = new StackMachine(instructions);
+    assertEquals(2.0, stackMachine.execute());
+  }
+
   @Test(expected = RuntimeException.class)
   public void testUndefinedVariableAccess() {
     instructions.clear();